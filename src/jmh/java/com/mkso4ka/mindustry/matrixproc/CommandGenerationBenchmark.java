@@ -0,0 +1,61 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Генерация и форматирование команд draw color / draw rect по готовому разбиению.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandGenerationBenchmark {
+    @Param({"GRADIENT", "NOISE", "PIXEL_ART"})
+    public SyntheticImages image;
+
+    @Param({"80", "176"})
+    public int size;
+
+    private Map<Integer, List<Rect>> rects;
+
+    @Setup
+    public void setUp() {
+        rects = new ImageProcessor(Pixmap.fromBufferedImage(image.create(size))).groupOptimal();
+    }
+
+    /**
+     * Потоковая запись всех команд фрагмента с разбиением на процессоры. Файлы заменены пустым каналом,
+     * чтобы измерялось только форматирование.
+     */
+    @Benchmark
+    public int emitCommands() throws IOException {
+        CommandEmitter emitter = new CommandEmitter(null, 0, 989, 256) {
+            @Override
+            protected WritableByteChannel openProcessor(int processorIndex) {
+                return Channels.newChannel(OutputStream.nullOutputStream());
+            }
+        };
+        emitter.emitRects(rects, size, 0, 0);
+        emitter.close();
+        return emitter.getCommandCount();
+    }
+}
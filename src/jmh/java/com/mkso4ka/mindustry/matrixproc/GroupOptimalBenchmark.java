@@ -0,0 +1,50 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Разбиение фрагмента на прямоугольники для размеров дисплеев 3x3 (80px) и 6x6 (176px).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GroupOptimalBenchmark {
+    @Param({"FLAT", "GRADIENT", "NOISE", "PIXEL_ART"})
+    public SyntheticImages image;
+
+    @Param({"80", "176"})
+    public int size;
+
+    private Pixmap pixmap;
+
+    @Setup
+    public void setUp() {
+        pixmap = Pixmap.fromBufferedImage(image.create(size));
+    }
+
+    @Benchmark
+    public void sequential(Blackhole blackhole) {
+        blackhole.consume(new ImageProcessor(pixmap).groupOptimal());
+    }
+
+    @Benchmark
+    public void components(Blackhole blackhole) {
+        blackhole.consume(new ImageProcessor(pixmap).groupOptimal(ForkJoinPool.commonPool()));
+    }
+}
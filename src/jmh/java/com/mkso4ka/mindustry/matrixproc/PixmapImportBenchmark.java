@@ -0,0 +1,52 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Импорт фрагмента в Pixmap: прямое копирование растра и запасной путь через getRGB.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PixmapImportBenchmark {
+    @Param({"80", "176"})
+    public int size;
+
+    /** TYPE_INT_ARGB, TYPE_4BYTE_ABGR, TYPE_INT_RGB и TYPE_USHORT_565_RGB (запасной путь). */
+    @Param({"2", "6", "1", "8"})
+    public int imageType;
+
+    /** Фрагмент, вырезанный через getSubimage, как в Main. */
+    @Param({"false", "true"})
+    public boolean subimage;
+
+    private BufferedImage image;
+
+    @Setup
+    public void setUp() {
+        int border = subimage ? 8 : 0;
+        BufferedImage source = SyntheticImages.PIXEL_ART.create(size + border * 2, size + border * 2, imageType);
+        image = subimage ? source.getSubimage(border, border, size, size) : source;
+    }
+
+    @Benchmark
+    public void fromBufferedImage(Blackhole blackhole) {
+        blackhole.consume(Pixmap.fromBufferedImage(image));
+    }
+}
@@ -0,0 +1,69 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Размещение процессоров вокруг сетки дисплеев от 1x1 до 32x32.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlaceProcessorsBenchmark {
+    @Param({"1", "2", "4", "8", "16", "32"})
+    public int grid;
+
+    @Param({"3", "6"})
+    public int displaySize;
+
+    /** Сколько процессоров требуется каждому дисплею. */
+    @Param({"2"})
+    public int processorsPerDisplay;
+
+    private MatrixBlueprint blueprint;
+    private int[] required;
+    private PrintStream originalOut;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        blueprint = new DisplayMatrix().placeDisplaysXxY(grid, grid, displaySize, DisplayProcessorMatrixFinal.PROCESSOR_REACH);
+        required = new int[blueprint.displayCoordinates.length];
+        Arrays.fill(required, processorsPerDisplay);
+        // placeProcessors печатает статистику; в замер она попадать не должна.
+        originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        System.setOut(originalOut);
+    }
+
+    @Benchmark
+    public void placeProcessors(Blackhole blackhole) {
+        DisplayProcessorMatrixFinal matrix = new DisplayProcessorMatrixFinal(
+            blueprint.n, blueprint.m, required, blueprint.displayCoordinates, displaySize
+        );
+        matrix.placeProcessors();
+        blackhole.consume(matrix);
+    }
+}
@@ -0,0 +1,59 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Масштабирование исходника до стены 4x3 дисплеев размера 6 (752x560): прежний drawImage против Resampler.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResamplerBenchmark {
+    private static final int TARGET_WIDTH = 752;
+    private static final int TARGET_HEIGHT = 560;
+
+    @Param({"1000", "4000"})
+    public int sourceWidth;
+
+    @Param({"NEAREST", "BOX", "LANCZOS3"})
+    public Resampler.Filter filter;
+
+    private BufferedImage source;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        source = SyntheticImages.GRADIENT.create(sourceWidth, sourceWidth * 3 / 4, BufferedImage.TYPE_3BYTE_BGR);
+    }
+
+    @Benchmark
+    public BufferedImage drawImage() {
+        BufferedImage target = new BufferedImage(TARGET_WIDTH, TARGET_HEIGHT, source.getType());
+        Graphics2D g = target.createGraphics();
+        g.drawImage(source, 0, 0, TARGET_WIDTH, TARGET_HEIGHT, null);
+        g.dispose();
+        return target;
+    }
+
+    @Benchmark
+    public BufferedImage resampler() {
+        return Resampler.resize(source, TARGET_WIDTH, TARGET_HEIGHT, filter, ForkJoinPool.commonPool());
+    }
+}
@@ -0,0 +1,77 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Отрисовка схемы размещения и запись ее в PNG разными кодировщиками.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SchematicImageBenchmark {
+    @Param({"8", "32"})
+    public int grid;
+
+    @Param({"IMAGE_IO", "FAST", "STORED"})
+    public PngWriter.Encoder encoder;
+
+    private DisplayProcessorMatrixFinal matrix;
+    private BufferedImage image;
+    private File output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        MatrixBlueprint blueprint = new DisplayMatrix().placeDisplaysXxY(grid, grid, 3, DisplayProcessorMatrixFinal.PROCESSOR_REACH);
+        int[] required = new int[blueprint.displayCoordinates.length];
+        Arrays.fill(required, 2);
+        PrintStream originalOut = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        try {
+            matrix = new DisplayProcessorMatrixFinal(blueprint.n, blueprint.m, required, blueprint.displayCoordinates, 3);
+            matrix.placeProcessors();
+        } finally {
+            System.setOut(originalOut);
+        }
+        image = matrix.renderImage(ForkJoinPool.commonPool());
+        output = File.createTempFile("schematic", ".png");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        output.delete();
+    }
+
+    @Benchmark
+    public BufferedImage render() {
+        return matrix.renderImage(ForkJoinPool.commonPool());
+    }
+
+    @Benchmark
+    public long encode() throws IOException {
+        PngWriter.write(image, output, encoder);
+        return output.length();
+    }
+}
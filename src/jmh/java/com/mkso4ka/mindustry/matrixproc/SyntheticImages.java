@@ -0,0 +1,52 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+/**
+ * Синтетические изображения для бенчмарков: от идеально удобных до худшего случая.
+ */
+public enum SyntheticImages {
+    /** Один цвет на весь фрагмент. */
+    FLAT,
+    /** Плавный градиент: много цветов, длинные узкие полосы. */
+    GRADIENT,
+    /** Случайный шум из небольшой палитры: худший случай для разбиения. */
+    NOISE,
+    /** Пиксель-арт: крупные одноцветные блоки 8x8 из ограниченной палитры. */
+    PIXEL_ART;
+
+    BufferedImage create(int width, int height, int imageType) {
+        BufferedImage image = new BufferedImage(width, height, imageType);
+        Random random = new Random(42);
+        int[] palette = new int[16];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = 0xff000000 | random.nextInt(0x1000000);
+        }
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, pixel(x, y, width, height, random, palette));
+            }
+        }
+        return image;
+    }
+
+    BufferedImage create(int size) {
+        return create(size, size, BufferedImage.TYPE_INT_ARGB);
+    }
+
+    private int pixel(int x, int y, int width, int height, Random random, int[] palette) {
+        switch (this) {
+            case FLAT:
+                return 0xff336699;
+            case GRADIENT:
+                int r = x * 255 / Math.max(1, width - 1);
+                int g = y * 255 / Math.max(1, height - 1);
+                return 0xff000000 | r << 16 | g << 8 | 0x80;
+            case NOISE:
+                return palette[random.nextInt(palette.length)];
+            default:
+                return palette[((x >> 3) * 7 + (y >> 3) * 3) % palette.length];
+        }
+    }
+}
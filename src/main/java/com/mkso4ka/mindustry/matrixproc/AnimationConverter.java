@@ -0,0 +1,221 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Конвертация анимации с межкадровым дельта-кодированием.
+ * <p>
+ * Нулевой кадр каждого фрагмента разбивается целиком (ключевой кадр, с него же начинается каждый
+ * повтор анимации). Для следующих кадров фрагмент сравнивается с предыдущим кадром, и на прямоугольники
+ * разбиваются только изменившиеся пиксели. Пары (фрагмент, кадр) не зависят друг от друга и
+ * обрабатываются параллельно, затем код каждого дисплея записывается {@link AnimationEmitter}.
+ * <p>
+ * Кадры заранее накладываются на черный фон дисплея и становятся непрозрачными: полупрозрачный
+ * draw color смешался бы с тем, что осталось от прошлого кадра, а прозрачный не стер бы его вовсе.
+ * <p>
+ * Шаги анимации ведет отдельный процессор-дирижер (файл animation_controller.txt): он пишет номер шага
+ * в bank1, ждет подтверждения от всех процессоров дисплеев, затем задержку кадра, и переходит к следующему.
+ * Поэтому медленный дисплей замедляет анимацию, но не теряет дельты. Банки памяти (bank1 и следующие,
+ * если процессоров больше 511) нужно подключить к дирижеру и ко всем процессорам дисплеев.
+ */
+class AnimationConverter {
+    private AnimationConverter() {}
+
+    /**
+     * @param flushLimit Сколько команд рисования записывается между двумя drawflush.
+     * @return Число процессоров для каждого дисплея (индекс j * displaysY + i, как в {@link Main}).
+     */
+    public static int[] convert(AnimationFrames animation, int displaysX, int displaysY, int displayPixelSize,
+                                Resampler.Filter filter, int flushLimit, ForkJoinPool pool, Path processorCodeDir, PrintStream log) throws IOException, InterruptedException, ExecutionException {
+        int totalWidth = Main.wallSize(displaysX, displayPixelSize);
+        int totalHeight = Main.wallSize(displaysY, displayPixelSize);
+        int frameCount = animation.frames.size();
+
+        // 1. Масштабируем кадры; каждый кадр делится на полосы строк в пуле pool.
+        List<BufferedImage> scaled = new ArrayList<>(frameCount);
+        for (BufferedImage frame : animation.frames) {
+            scaled.add(opaqueOnBlack(Resampler.resize(frame, totalWidth, totalHeight, filter, pool)));
+        }
+
+        // 2. Сравнение с предыдущим кадром и разбиение - отдельная задача на каждую пару (фрагмент, кадр).
+        int displayCount = displaysX * displaysY;
+        List<Callable<FrameDelta>> deltaTasks = new ArrayList<>(displayCount * frameCount);
+        for (int i = 0; i < displaysY; i++) {
+            for (int j = 0; j < displaysX; j++) {
+                Rectangle bounds = Main.sliceBounds(i, j, displaysX, displaysY, displayPixelSize);
+                for (int f = 0; f < frameCount; f++) {
+                    BufferedImage current = scaled.get(f);
+                    BufferedImage previous = f > 0 ? scaled.get(f - 1) : null;
+                    deltaTasks.add(() -> decomposeDelta(previous, current, bounds, pool));
+                }
+            }
+        }
+        List<Future<FrameDelta>> deltas = pool.invokeAll(deltaTasks);
+
+        // 3. Запись кода. Ячейки подтверждений идут подряд по дисплеям, поэтому дисплеи пишутся по порядку:
+        //    первая ячейка дисплея известна, только когда записаны все предыдущие.
+        int[] processorsPerDisplay = new int[displayCount];
+        int nextSlot = 1;
+        for (int i = 0; i < displaysY; i++) {
+            for (int j = 0; j < displaysX; j++) {
+                List<Future<FrameDelta>> tileDeltas = deltas.subList((i * displaysX + j) * frameCount, (i * displaysX + j + 1) * frameCount);
+                log.println(emitTile(tileDeltas, i, j, displaysY, displayPixelSize, flushLimit, processorCodeDir, nextSlot, processorsPerDisplay));
+                nextSlot += processorsPerDisplay[j * displaysY + i];
+            }
+        }
+
+        writeController(processorCodeDir, nextSlot - 1, animation.delaySeconds);
+        return processorsPerDisplay;
+    }
+
+    /**
+     * Прямоугольники кадра внутри фрагмента bounds: для ключевого кадра (previous == null) - все,
+     * иначе только изменившиеся пиксели.
+     */
+    private static FrameDelta decomposeDelta(BufferedImage previous, BufferedImage current, Rectangle bounds, ForkJoinPool pool) {
+        Pixmap pixmap = Pixmap.fromBufferedImage(current.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height));
+        ImageProcessor processor = new ImageProcessor(pixmap);
+        if (previous == null) {
+            return new FrameDelta(processor.groupOptimal(pool), pixmap.getWidth() * pixmap.getHeight());
+        }
+        Pixmap before = Pixmap.fromBufferedImage(previous.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height));
+        boolean[] changed = changedPixels(before, pixmap);
+        int changedCount = 0;
+        for (boolean pixel : changed) {
+            if (pixel) {
+                changedCount++;
+            }
+        }
+        if (changedCount == 0) {
+            return new FrameDelta(Collections.emptyMap(), 0);
+        }
+        return new FrameDelta(processor.groupOptimal(pool, changed), changedCount);
+    }
+
+    /**
+     * Маска пикселей (индекс y * width + x), которые отличаются между кадрами.
+     */
+    static boolean[] changedPixels(Pixmap before, Pixmap after) {
+        int width = after.getWidth();
+        int height = after.getHeight();
+        int[] a = before.getPixels();
+        int[] b = after.getPixels();
+        boolean[] changed = new boolean[width * height];
+        for (int y = 0; y < height; y++) {
+            int rowA = y * before.getStride();
+            int rowB = y * after.getStride();
+            for (int x = 0; x < width; x++) {
+                changed[y * width + x] = a[rowA + x] != b[rowB + x];
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Наложение кадра на непрозрачный черный фон (на месте): так пиксель выглядит на чистом дисплее.
+     */
+    static BufferedImage opaqueOnBlack(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        for (int k = 0; k < pixels.length; k++) {
+            int alpha = pixels[k] >>> 24;
+            if (alpha != 0xff) {
+                int r = (((pixels[k] >> 16) & 0xff) * alpha + 127) / 255;
+                int g = (((pixels[k] >> 8) & 0xff) * alpha + 127) / 255;
+                int b = ((pixels[k] & 0xff) * alpha + 127) / 255;
+                pixels[k] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+        image.setRGB(0, 0, width, height, pixels, 0, width);
+        return image;
+    }
+
+    private static String emitTile(List<Future<FrameDelta>> tileDeltas, int i, int j, int displaysY, int displayPixelSize, int flushLimit,
+                                   Path processorCodeDir, int firstSlot, int[] processorsPerDisplay) throws IOException, InterruptedException, ExecutionException {
+        int displayIndex = j * displaysY + i;
+        int offsetX = (j > 0) ? Main.BORDER_SIZE : 0;
+        int offsetY = (i > 0) ? Main.BORDER_SIZE : 0;
+        long changedPixels = 0;
+        int keyframeCommands = 0;
+        int commandCount;
+        int processorCount;
+        try (AnimationEmitter emitter = new AnimationEmitter(processorCodeDir, displayIndex, Main.COMMANDS_PER_PROCESSOR + 1,
+                tileDeltas.size(), firstSlot, flushLimit)) {
+            for (int f = 0; f < tileDeltas.size(); f++) {
+                FrameDelta delta = tileDeltas.get(f).get();
+                emitter.emitFrame(f, delta.rects, displayPixelSize, offsetX, offsetY);
+                if (f == 0) {
+                    keyframeCommands = emitter.getCommandCount();
+                } else {
+                    changedPixels += delta.changedPixels;
+                }
+            }
+            // Процессоры открываются при записи, закрытие лишь дописывает подтверждение - счетчики уже итоговые.
+            commandCount = emitter.getCommandCount();
+            processorCount = emitter.getProcessorCount();
+        }
+        processorsPerDisplay[displayIndex] = processorCount;
+        return "   Дисплей " + displayIndex + " (X:" + j + ",Y:" + i + "): "
+            + "ключевой кадр " + keyframeCommands + " команд, "
+            + "изменено пикселей в остальных кадрах " + changedPixels + ", "
+            + "всего " + commandCount + " команд -> " + processorCount + " проц.";
+    }
+
+    /**
+     * Процессор-дирижер: пишет номер шага в bank1, ждет, пока в ячейках 1..processors (см. {@link AnimationEmitter})
+     * не окажется этот же шаг, выжидает задержку кадра и переходит к следующему шагу.
+     */
+    private static void writeController(Path processorCodeDir, int processors, double delaySeconds) throws IOException {
+        StringBuilder code = new StringBuilder()
+            .append("set step 0\n")
+            .append("op add step step 1\n")
+            .append("write step bank1 0\n");
+        int line = 3;
+        // Ячейки по банкам: в bank1 ячейка 0 занята номером шага.
+        for (int bank = 1; (bank - 1) * AnimationEmitter.BANK_SIZE <= processors; bank++) {
+            int from = bank == 1 ? 1 : 0;
+            int to = Math.min(AnimationEmitter.BANK_SIZE, processors + 1 - (bank - 1) * AnimationEmitter.BANK_SIZE);
+            if (from >= to) {
+                break;
+            }
+            int read = line + 1;
+            code.append("set slot ").append(from).append('\n')
+                .append("read ack bank").append(bank).append(" slot\n")
+                .append("jump ").append(read).append(" notEqual ack step\n")
+                .append("op add slot slot 1\n")
+                .append("jump ").append(read).append(" lessThan slot ").append(to).append('\n');
+            line += 5;
+        }
+        code.append("wait ").append(String.format(Locale.ROOT, "%.3f", delaySeconds)).append('\n')
+            .append("jump 1 always");
+        Files.write(processorCodeDir.resolve("animation_controller.txt"), code.toString().getBytes());
+    }
+
+    /**
+     * Разбиение одного кадра фрагмента и число пикселей, которые пришлось перерисовать.
+     */
+    private static class FrameDelta {
+        final Map<Integer, List<Rect>> rects;
+        final int changedPixels;
+
+        FrameDelta(Map<Integer, List<Rect>> rects, int changedPixels) {
+            this.rects = rects;
+            this.changedPixels = changedPixels;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Потоковая запись кода процессоров одного дисплея для анимации.
+ * <p>
+ * Кадры после нулевого - дельты к предыдущему кадру, поэтому ни один кадр нельзя пропустить. Процессор-дирижер
+ * (см. {@link AnimationConverter}) пишет в ячейку 0 банка памяти bank1 номер шага step (1, 2, 3, ...; кадр -
+ * (step - 1) mod число кадров) и ждет, пока каждый процессор дисплеев не подтвердит этот шаг в своей ячейке.
+ * Процессор ждет нового шага, выполняет участки его кадра и записывает подтверждение:
+ * <pre>
+ * read step bank1 0
+ * jump 0 equal step done
+ * op sub frame step 1
+ * op mod frame frame 12
+ * jump 9 notEqual frame 3
+ * draw color ...
+ * draw rect ...
+ * drawflush display1
+ * ...
+ * set done step
+ * write step bank2 17
+ * </pre>
+ * Участок выполняется только для своего кадра; адрес перехода известен заранее, потому что
+ * длина участка считается до записи. Если кадр не помещается в процессор, он делится на несколько
+ * участков, и в начале следующего участка цвет задается заново.
+ * <p>
+ * Как и в {@link CommandEmitter}, внутри участка после каждых flushLimit команд рисования вставляется
+ * промежуточный drawflush, иначе лишние команды буфер рисования отбросит. Если после сброса продолжается
+ * тот же цвет, draw color повторяется; новый цвет начинается только там, где за ним поместится и прямоугольник.
+ * <p>
+ * Ячейки подтверждений нумеруются подряд по всем процессорам анимации начиная с 1: ячейка s - адрес
+ * s mod 512 в банке bank(1 + s / 512).
+ */
+class AnimationEmitter implements Closeable {
+    /** Ячеек в банке памяти Mindustry. */
+    static final int BANK_SIZE = 512;
+
+    private static final byte[] READ_STEP = "read step bank1 0\n".getBytes();
+    private static final byte[] WAIT_STEP = "jump 0 equal step done\n".getBytes();
+    private static final byte[] STEP_TO_FRAME = "op sub frame step 1\n".getBytes();
+    private static final byte[] FRAME_MOD = "op mod frame frame ".getBytes();
+    private static final byte[] DONE = "set done step\n".getBytes();
+    private static final byte[] WRITE_STEP = "write step bank".getBytes();
+    private static final byte[] JUMP = "jump ".getBytes();
+    private static final byte[] NOT_EQUAL_FRAME = " notEqual frame ".getBytes();
+    /** Ожидание шага и вычисление кадра в начале процессора. */
+    private static final int HEADER_LINES = 4;
+    /** Подтверждение шага в конце процессора. */
+    private static final int ACK_LINES = 2;
+    /** Заголовок участка, drawflush в конце и хотя бы одна пара draw color + draw rect. */
+    private static final int MIN_PIECE_LINES = 4;
+    /** Перед прямоугольником: промежуточный drawflush. */
+    private static final int FLUSH = 1;
+    /** Перед прямоугольником: draw color. */
+    private static final int COLOR = 2;
+
+    private final Path directory;
+    private final int displayIndex;
+    private final int linesPerProcessor;
+    private final int frameCount;
+    private final int firstSlot;
+    private final int flushLimit;
+    private final CodeBuffer code = new CodeBuffer();
+
+    // Команды текущего кадра в порядке записи: цвет и прямоугольник в координатах дисплея.
+    private int[] colors = new int[64];
+    private int[] rects = new int[64 * 4];
+
+    private int processorCount;
+    private int linesInProcessor;
+    private int commandCount;
+
+    /**
+     * @param linesPerProcessor Сколько строк кода помещается в один процессор (вместе с ожиданием шага, переходами и подтверждением).
+     * @param frameCount Число кадров анимации.
+     * @param firstSlot Ячейка подтверждения первого процессора дисплея; остальные процессоры берут следующие.
+     * @param flushLimit Сколько команд рисования записывается между двумя drawflush, не меньше 2.
+     */
+    public AnimationEmitter(Path directory, int displayIndex, int linesPerProcessor, int frameCount, int firstSlot, int flushLimit) {
+        if (flushLimit < 2) {
+            throw new IllegalArgumentException("Между drawflush должно помещаться хотя бы 2 команды: " + flushLimit);
+        }
+        this.directory = directory;
+        this.displayIndex = displayIndex;
+        this.linesPerProcessor = linesPerProcessor;
+        this.frameCount = frameCount;
+        this.firstSlot = firstSlot;
+        this.flushLimit = flushLimit;
+    }
+
+    /**
+     * Записывает прямоугольники кадра frame. Пустой кадр (ничего не изменилось) не занимает строк.
+     */
+    public void emitFrame(int frame, Map<Integer, List<Rect>> frameRects, int displayPixelSize, int offsetX, int offsetY) throws IOException {
+        int count = 0;
+        for (Map.Entry<Integer, List<Rect>> entry : frameRects.entrySet()) {
+            for (Rect rect : entry.getValue()) {
+                if (count == colors.length) {
+                    colors = Arrays.copyOf(colors, count * 2);
+                    rects = Arrays.copyOf(rects, count * 8);
+                }
+                colors[count] = entry.getKey();
+                rects[count * 4] = rect.x - offsetX;
+                rects[count * 4 + 1] = displayPixelSize - (rect.y - offsetY) - rect.h;
+                rects[count * 4 + 2] = rect.w;
+                rects[count * 4 + 3] = rect.h;
+                count++;
+            }
+        }
+
+        int next = 0;
+        while (next < count) {
+            if (code.isOpen() && linesPerProcessor - ACK_LINES - linesInProcessor < MIN_PIECE_LINES) {
+                finishProcessor();
+            }
+            if (!code.isOpen()) {
+                code.open(CommandEmitter.openProcessorFile(directory, displayIndex, processorCount++));
+                code.line().put(READ_STEP);
+                code.line().put(WAIT_STEP);
+                code.line().put(STEP_TO_FRAME);
+                code.line().put(FRAME_MOD).putInt(frameCount).put('\n');
+                linesInProcessor = HEADER_LINES;
+            }
+
+            // Сколько прямоугольников поместится в участок и сколько строк он займет вместе со сбросами.
+            int budget = linesPerProcessor - ACK_LINES - linesInProcessor - 2;
+            int end = next;
+            int lines = 0;
+            int flushes = 0;
+            int commandsInFlush = 0;
+            for (int i = next; i < count; i++) {
+                int prefix = prefix(i, next, commandsInFlush);
+                int cost = Integer.bitCount(prefix) + 1;
+                if (lines + cost > budget) {
+                    break;
+                }
+                lines += cost;
+                flushes += prefix & FLUSH;
+                commandsInFlush = afterRect(prefix, commandsInFlush);
+                end = i + 1;
+            }
+
+            int after = linesInProcessor + 1 + lines + 1;
+            code.line().put(JUMP).putInt(after).put(NOT_EQUAL_FRAME).putInt(frame).put('\n');
+            commandsInFlush = 0;
+            for (int i = next; i < end; i++) {
+                int prefix = prefix(i, next, commandsInFlush);
+                if ((prefix & FLUSH) != 0) {
+                    code.line().put(CommandEmitter.DRAW_FLUSH).put('\n');
+                }
+                if ((prefix & COLOR) != 0) {
+                    code.putColor(colors[i]);
+                }
+                code.putRect(rects[i * 4], rects[i * 4 + 1], rects[i * 4 + 2], rects[i * 4 + 3]);
+                commandsInFlush = afterRect(prefix, commandsInFlush);
+            }
+            code.line().put(CommandEmitter.DRAW_FLUSH).put('\n');
+            linesInProcessor = after;
+            commandCount += lines - flushes;
+            next = end;
+        }
+    }
+
+    /**
+     * Что записывается перед прямоугольником i участка, начатого с прямоугольника first: флаги FLUSH и COLOR.
+     * @param commandsInFlush Команд рисования с последнего drawflush.
+     */
+    private int prefix(int i, int first, int commandsInFlush) {
+        boolean newColor = i == first || colors[i] != colors[i - 1];
+        if (commandsInFlush + (newColor ? 2 : 1) > flushLimit) {
+            // После сброса цвет мог сменить другой процессор дисплея - задаем его заново.
+            return FLUSH | COLOR;
+        }
+        return newColor ? COLOR : 0;
+    }
+
+    /**
+     * Команд рисования с последнего drawflush после записи прямоугольника с этим prefix.
+     */
+    private static int afterRect(int prefix, int commandsInFlush) {
+        return ((prefix & FLUSH) != 0 ? 0 : commandsInFlush) + ((prefix & COLOR) != 0 ? 1 : 0) + 1;
+    }
+
+    /**
+     * Количество команд draw color / draw rect во всех кадрах.
+     */
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public int getProcessorCount() {
+        return processorCount;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finishProcessor();
+    }
+
+    /**
+     * Подтверждение шага в ячейку процессора и закрытие его файла.
+     */
+    private void finishProcessor() throws IOException {
+        if (!code.isOpen()) {
+            return;
+        }
+        int slot = firstSlot + processorCount - 1;
+        code.line().put(DONE);
+        code.line().put(WRITE_STEP).putInt(1 + slot / BANK_SIZE).put(' ').putInt(slot % BANK_SIZE);
+        code.close();
+    }
+}
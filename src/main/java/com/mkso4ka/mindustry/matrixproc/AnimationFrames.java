@@ -0,0 +1,163 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import org.w3c.dom.Node;
+
+/**
+ * Кадры анимации: GIF-файл или папка с пронумерованными PNG (frame_0.png, frame_1.png, ...).
+ * Все кадры приводятся к полному размеру анимации в формате TYPE_INT_ARGB.
+ */
+class AnimationFrames {
+    private static final Pattern NUMBER = Pattern.compile("(\\d+)(?!.*\\d)");
+    /** Задержка кадра по умолчанию, если источник ее не задает. */
+    private static final double DEFAULT_DELAY_SECONDS = 0.1;
+
+    final List<BufferedImage> frames;
+    /** Задержка между кадрами в секундах (для GIF - задержка первого кадра). */
+    final double delaySeconds;
+
+    private AnimationFrames(List<BufferedImage> frames, double delaySeconds) {
+        this.frames = frames;
+        this.delaySeconds = delaySeconds;
+    }
+
+    public static AnimationFrames read(File source) throws IOException {
+        if (source.isDirectory()) {
+            return readSequence(source);
+        }
+        return readGif(source);
+    }
+
+    /**
+     * Папка с PNG: кадры упорядочиваются по последнему числу в имени файла, затем по имени.
+     */
+    private static AnimationFrames readSequence(File directory) throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.toLowerCase().endsWith(".png"));
+        if (files == null || files.length == 0) {
+            throw new IOException("В папке " + directory + " нет PNG-кадров.");
+        }
+        Arrays.sort(files, Comparator.comparingLong(AnimationFrames::frameNumber).thenComparing(File::getName));
+        List<BufferedImage> frames = new ArrayList<>(files.length);
+        for (File file : files) {
+            BufferedImage frame = ImageIO.read(file);
+            if (frame == null) {
+                throw new IOException("Не удалось прочитать кадр: " + file);
+            }
+            frames.add(toArgb(frame));
+        }
+        return new AnimationFrames(frames, DEFAULT_DELAY_SECONDS);
+    }
+
+    private static long frameNumber(File file) {
+        Matcher matcher = NUMBER.matcher(file.getName());
+        return matcher.find() ? Long.parseLong(matcher.group(1)) : Long.MAX_VALUE;
+    }
+
+    /**
+     * GIF: кадры хранят только измененный участок, поэтому они накладываются на общий холст
+     * с учетом смещения и способа очистки (disposal) предыдущего кадра.
+     */
+    private static AnimationFrames readGif(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("Неизвестный формат анимации: " + file);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false);
+                int count = reader.getNumImages(true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                Node screen = child(reader.getStreamMetadata(), "javax_imageio_gif_stream_1.0", "LogicalScreenDescriptor");
+                if (screen != null) {
+                    width = Math.max(width, intAttribute(screen, "logicalScreenWidth", width));
+                    height = Math.max(height, intAttribute(screen, "logicalScreenHeight", height));
+                }
+
+                BufferedImage canvas = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                List<BufferedImage> frames = new ArrayList<>(count);
+                double delaySeconds = DEFAULT_DELAY_SECONDS;
+                for (int index = 0; index < count; index++) {
+                    BufferedImage part = reader.read(index);
+                    IIOMetadata metadata = reader.getImageMetadata(index);
+                    Node descriptor = child(metadata, "javax_imageio_gif_image_1.0", "ImageDescriptor");
+                    Node control = child(metadata, "javax_imageio_gif_image_1.0", "GraphicControlExtension");
+                    int left = descriptor == null ? 0 : intAttribute(descriptor, "imageLeftPosition", 0);
+                    int top = descriptor == null ? 0 : intAttribute(descriptor, "imageTopPosition", 0);
+                    String disposal = control == null ? "none" : control.getAttributes().getNamedItem("disposalMethod").getNodeValue();
+                    if (index == 0 && control != null && intAttribute(control, "delayTime", 0) > 0) {
+                        delaySeconds = intAttribute(control, "delayTime", 0) / 100.0;
+                    }
+
+                    BufferedImage previous = "restoreToPrevious".equals(disposal) ? copy(canvas) : null;
+                    Graphics2D g = canvas.createGraphics();
+                    g.drawImage(part, left, top, null);
+                    g.dispose();
+                    frames.add(copy(canvas));
+
+                    if ("restoreToBackgroundColor".equals(disposal)) {
+                        Graphics2D clear = canvas.createGraphics();
+                        clear.setComposite(AlphaComposite.Clear);
+                        clear.fillRect(left, top, part.getWidth(), part.getHeight());
+                        clear.dispose();
+                    } else if (previous != null) {
+                        canvas = previous;
+                    }
+                }
+                return new AnimationFrames(frames, delaySeconds);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static Node child(IIOMetadata metadata, String format, String name) {
+        if (metadata == null || !Arrays.asList(metadata.getMetadataFormatNames()).contains(format)) {
+            return null;
+        }
+        for (Node node = metadata.getAsTree(format).getFirstChild(); node != null; node = node.getNextSibling()) {
+            if (name.equals(node.getNodeName())) {
+                return node;
+            }
+        }
+        return null;
+    }
+
+    private static int intAttribute(Node node, String name, int fallback) {
+        Node attribute = node.getAttributes().getNamedItem(name);
+        return attribute == null ? fallback : Integer.parseInt(attribute.getNodeValue());
+    }
+
+    private static BufferedImage copy(BufferedImage image) {
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        image.copyData(result.getRaster());
+        return result;
+    }
+
+    private static BufferedImage toArgb(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_INT_ARGB) {
+            return image;
+        }
+        BufferedImage result = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g = result.createGraphics();
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return result;
+    }
+}
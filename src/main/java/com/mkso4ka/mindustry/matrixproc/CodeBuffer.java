@@ -0,0 +1,127 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Переиспользуемый байтовый буфер для текста процессоров. Строки кода пишутся сразу байтами
+ * (числа форматируются вручную), а буфер сбрасывается в канал открытого файла процессора.
+ */
+class CodeBuffer {
+    private static final byte[] DRAW_COLOR = "draw color ".getBytes();
+    private static final byte[] DRAW_RECT = "draw rect ".getBytes();
+    private static final byte[] DRAW_CLEAR = "draw clear ".getBytes();
+    private static final byte[] COMMAND_END = " 0 0\n".getBytes();
+    private static final byte[] CLEAR_END = " 0 0 0\n".getBytes();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** Запас места в буфере перед каждой строкой: самая длинная строка (четыре числа со знаком) заметно короче. */
+    private static final int MAX_LINE_BYTES = 128;
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private final byte[] digits = new byte[11];
+    private WritableByteChannel channel;
+
+    public void open(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    public boolean isOpen() {
+        return channel != null;
+    }
+
+    /**
+     * Гарантирует место под очередную строку, при необходимости сбрасывая буфер в канал.
+     */
+    public CodeBuffer line() throws IOException {
+        if (buffer.remaining() < MAX_LINE_BYTES) {
+            drain();
+        }
+        return this;
+    }
+
+    public CodeBuffer put(byte[] bytes) {
+        buffer.put(bytes);
+        return this;
+    }
+
+    public CodeBuffer put(char ascii) {
+        buffer.put((byte) ascii);
+        return this;
+    }
+
+    /**
+     * Десятичная запись числа прямо в буфер.
+     */
+    public CodeBuffer putInt(int value) {
+        long remaining = value;
+        if (remaining < 0) {
+            buffer.put((byte) '-');
+            remaining = -remaining;
+        }
+        int length = 0;
+        do {
+            digits[length++] = (byte) ('0' + remaining % 10);
+            remaining /= 10;
+        } while (remaining != 0);
+        while (length > 0) {
+            buffer.put(digits[--length]);
+        }
+        return this;
+    }
+
+    /**
+     * draw color r g b a 0 0
+     */
+    public void putColor(int argb) throws IOException {
+        line().put(DRAW_COLOR)
+            .putInt((argb >> 16) & 0xff).put(' ')
+            .putInt((argb >> 8) & 0xff).put(' ')
+            .putInt(argb & 0xff).put(' ')
+            .putInt((argb >> 24) & 0xff).put(COMMAND_END);
+    }
+
+    /**
+     * draw clear r g b 0 0 0
+     */
+    public void putClear(int rgb) throws IOException {
+        line().put(DRAW_CLEAR)
+            .putInt((rgb >> 16) & 0xff).put(' ')
+            .putInt((rgb >> 8) & 0xff).put(' ')
+            .putInt(rgb & 0xff).put(CLEAR_END);
+    }
+
+    /**
+     * draw rect x y w h 0 0
+     */
+    public void putRect(int x, int y, int w, int h) throws IOException {
+        line().put(DRAW_RECT)
+            .putInt(x).put(' ')
+            .putInt(y).put(' ')
+            .putInt(w).put(' ')
+            .putInt(h).put(COMMAND_END);
+    }
+
+    /**
+     * Сбрасывает остаток буфера и закрывает канал текущего файла.
+     */
+    public void close() throws IOException {
+        if (channel == null) {
+            return;
+        }
+        try {
+            drain();
+        } finally {
+            channel.close();
+            channel = null;
+        }
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
@@ -0,0 +1,301 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Режим с потерями: упрощает фрагмент, пока число команд не уложится в заданный бюджет.
+ * <p>
+ * На каждой итерации по очереди применяются два шага, каждый раз чуть сильнее:
+ * <ol>
+ *   <li>слияние близких цветов - менее популярный цвет заменяется более популярным,
+ *       если разница между ними (delta E в пространстве Lab) не больше порога;</li>
+ *   <li>поглощение мелких прямоугольников - прямоугольник площадью не больше порога перекрашивается
+ *       в самый частый цвет по его периметру и сливается с соседями.</li>
+ * </ol>
+ * После каждого шага фрагмент разбивается заново, и его стоимость считается по тому, что запишет
+ * CommandEmitter ({@link CommandEmitter#measure}): вместе с промежуточными drawflush и повторами draw color.
+ */
+class CommandBudgetReducer {
+    private static final int MAX_ITERATIONS = 40;
+    private static final double INITIAL_DELTA_E = 2.0;
+    private static final double DELTA_E_GROWTH = 1.35;
+    /** Координат на цвет: L, a, b и альфа. */
+    private static final int LAB = 4;
+
+    private CommandBudgetReducer() {}
+
+    /**
+     * Упрощает фрагмент (на месте) и возвращает его разбиение. Если бюджет недостижим
+     * за отведенное число итераций, возвращается самый упрощенный вариант.
+     * @param budget Максимальное число инструкций на дисплей (без завершающих drawflush процессоров);
+     *               бюджет не больше commandsPerProcessor укладывается в один процессор.
+     * @param commandsPerProcessor Сколько инструкций помещается в один процессор.
+     * @param flushLimit Сколько команд рисования записывается между двумя drawflush.
+     */
+    public static Map<Integer, List<Rect>> reduce(Pixmap pixmap, int budget, int commandsPerProcessor, int flushLimit, ForkJoinPool pool) {
+        Map<Integer, List<Rect>> rects = new ImageProcessor(pixmap).groupOptimal(pool);
+        // Шаги только перекрашивают пиксели в уже имеющиеся цвета, поэтому цвета фрагмента и их Lab считаются один раз.
+        int[] colors = distinctColors(pixmap.getPixels());
+        float[] lab = new float[colors.length * LAB];
+        for (int c = 0; c < colors.length; c++) {
+            double[] coordinates = toLab(colors[c]);
+            for (int k = 0; k < LAB; k++) {
+                lab[c * LAB + k] = (float) coordinates[k];
+            }
+        }
+        double deltaE = INITIAL_DELTA_E;
+        int tinyArea = 1;
+        for (int iteration = 0; iteration < MAX_ITERATIONS
+                && !CommandEmitter.measure(rects, false, commandsPerProcessor, flushLimit).fits(budget, commandsPerProcessor); iteration++) {
+            if (iteration % 2 == 0) {
+                mergeCloseColors(pixmap, deltaE, colors, lab);
+                deltaE *= DELTA_E_GROWTH;
+            } else {
+                absorbTinyRects(pixmap, rects, tinyArea);
+                tinyArea++;
+            }
+            rects = new ImageProcessor(pixmap).groupOptimal(pool);
+        }
+        return rects;
+    }
+
+    /**
+     * Различные цвета пикселей по возрастанию: сортировка копии и пропуск одинаковых подряд.
+     */
+    private static int[] distinctColors(int[] pixels) {
+        int[] sorted = pixels.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[count++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, count);
+    }
+
+    /**
+     * Заменяет каждый цвет ближайшим более популярным, если они различаются не больше чем на maxDeltaE.
+     * @param colors Цвета по возрастанию, среди них все цвета пикселей.
+     * @param lab Координаты L, a, b и альфа каждого цвета colors.
+     */
+    private static void mergeCloseColors(Pixmap pixmap, double maxDeltaE, int[] colors, float[] lab) {
+        int[] pixels = pixmap.getPixels();
+        int[] pixelColor = new int[pixels.length];
+        int[] population = new int[colors.length];
+        for (int i = 0; i < pixels.length; i++) {
+            pixelColor[i] = Arrays.binarySearch(colors, pixels[i]);
+            population[pixelColor[i]]++;
+        }
+        // От популярных к редким; при равенстве - по значению цвета (colors отсортированы).
+        long[] order = new long[colors.length];
+        int present = 0;
+        for (int c = 0; c < colors.length; c++) {
+            if (population[c] > 0) {
+                order[present++] = ((long) (Integer.MAX_VALUE - population[c]) << 32) | c;
+            }
+        }
+        Arrays.sort(order, 0, present);
+
+        // Оставленные цвета лежат в сетке с шагом maxDeltaE: достаточно близкий цвет - в соседней ячейке.
+        KeptGrid kept = new KeptGrid(present, maxDeltaE);
+        int[] replacement = new int[colors.length];
+        boolean replaced = false;
+        double maxDistance = maxDeltaE * maxDeltaE;
+        for (int o = 0; o < present; o++) {
+            int color = (int) order[o];
+            replacement[color] = color;
+            int cellL = kept.cell(lab[color * LAB]);
+            int cellA = kept.cell(lab[color * LAB + 1]);
+            int cellB = kept.cell(lab[color * LAB + 2]);
+            int target = -1;
+            double best = maxDistance;
+            for (int dl = -1; dl <= 1; dl++) {
+                for (int da = -1; da <= 1; da++) {
+                    for (int db = -1; db <= 1; db++) {
+                        for (int k = kept.first(cellL + dl, cellA + da, cellB + db); k >= 0; k = kept.next(k)) {
+                            double distance = squaredDistance(lab, color, kept.color(k));
+                            // При равном расстоянии побеждает позже оставленный цвет.
+                            if (distance < best || (distance == best && k > target)) {
+                                best = distance;
+                                target = k;
+                            }
+                        }
+                    }
+                }
+            }
+            if (target < 0) {
+                kept.add(color, cellL, cellA, cellB);
+            } else {
+                replacement[color] = kept.color(target);
+                replaced = true;
+            }
+        }
+        if (!replaced) {
+            return;
+        }
+        for (int i = 0; i < pixels.length; i++) {
+            pixels[i] = colors[replacement[pixelColor[i]]];
+        }
+    }
+
+    /**
+     * Квадрат delta E (CIE76) между цветами a и b: евклидово расстояние в Lab вместе с альфой.
+     */
+    private static double squaredDistance(float[] lab, int a, int b) {
+        double sum = 0;
+        for (int k = 0; k < LAB; k++) {
+            double d = lab[a * LAB + k] - lab[b * LAB + k];
+            sum += d * d;
+        }
+        return sum;
+    }
+
+    /**
+     * Оставленные цвета по ячейкам сетки L, a, b: открытая адресация по ключу ячейки, в ячейке - список
+     * цветов от последнего добавленного. Альфа в ключ не входит: расстояние по L, a, b не больше полного.
+     */
+    private static final class KeptGrid {
+        private final double step;
+        private final long[] keys;
+        /** Последний добавленный в ячейку цвет (номер в порядке добавления) или -1 для пустой ячейки. */
+        private final int[] heads;
+        private final int[] colors;
+        private final int[] next;
+        private int size;
+
+        KeptGrid(int capacity, double step) {
+            this.step = step;
+            int slots = Integer.highestOneBit(Math.max(1, capacity)) * 4;
+            keys = new long[slots];
+            heads = new int[slots];
+            Arrays.fill(heads, -1);
+            colors = new int[capacity];
+            next = new int[capacity];
+        }
+
+        int cell(float coordinate) {
+            return (int) Math.floor(coordinate / step);
+        }
+
+        int first(int l, int a, int b) {
+            return heads[slot(key(l, a, b))];
+        }
+
+        int next(int k) {
+            return next[k];
+        }
+
+        int color(int k) {
+            return colors[k];
+        }
+
+        void add(int color, int l, int a, int b) {
+            long key = key(l, a, b);
+            int slot = slot(key);
+            keys[slot] = key;
+            colors[size] = color;
+            next[size] = heads[slot];
+            heads[slot] = size++;
+        }
+
+        /** Место ключа в таблице: занятое им или первое свободное. */
+        private int slot(long key) {
+            int mask = keys.length - 1;
+            int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+            while (heads[slot] >= 0 && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private static long key(int l, int a, int b) {
+            return ((long) (l & 0x1FFFFF) << 42) | ((long) (a & 0x1FFFFF) << 21) | (b & 0x1FFFFF);
+        }
+    }
+
+    /**
+     * Перекрашивает прямоугольники площадью не больше maxArea в самый частый чужой цвет по периметру.
+     */
+    private static void absorbTinyRects(Pixmap pixmap, Map<Integer, List<Rect>> rects, int maxArea) {
+        List<Integer> colors = new ArrayList<>(rects.keySet());
+        colors.sort(null);
+        for (int color : colors) {
+            for (Rect rect : rects.get(color)) {
+                if (rect.w * rect.h > maxArea) {
+                    continue;
+                }
+                int neighbour = dominantNeighbour(pixmap, rect, color);
+                if (neighbour != color) {
+                    for (int y = rect.y; y < rect.y + rect.h; y++) {
+                        for (int x = rect.x; x < rect.x + rect.w; x++) {
+                            pixmap.set(x, y, neighbour);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private static int dominantNeighbour(Pixmap pixmap, Rect rect, int ownColor) {
+        Map<Integer, Integer> votes = new HashMap<>();
+        for (int x = rect.x; x < rect.x + rect.w; x++) {
+            vote(pixmap, x, rect.y - 1, ownColor, votes);
+            vote(pixmap, x, rect.y + rect.h, ownColor, votes);
+        }
+        for (int y = rect.y; y < rect.y + rect.h; y++) {
+            vote(pixmap, rect.x - 1, y, ownColor, votes);
+            vote(pixmap, rect.x + rect.w, y, ownColor, votes);
+        }
+        int best = ownColor;
+        int bestVotes = 0;
+        for (Map.Entry<Integer, Integer> entry : votes.entrySet()) {
+            int count = entry.getValue();
+            if (count > bestVotes || (count == bestVotes && entry.getKey() < best)) {
+                bestVotes = count;
+                best = entry.getKey();
+            }
+        }
+        return best;
+    }
+
+    private static void vote(Pixmap pixmap, int x, int y, int ownColor, Map<Integer, Integer> votes) {
+        if (x < 0 || y < 0 || x >= pixmap.getWidth() || y >= pixmap.getHeight()) {
+            return;
+        }
+        int color = pixmap.get(x, y);
+        if (color != ownColor) {
+            votes.merge(color, 1, Integer::sum);
+        }
+    }
+
+    /**
+     * Перевод ARGB в CIE Lab (D65). Альфа добавляется четвертой координатой в том же масштабе, что и L.
+     */
+    static double[] toLab(int argb) {
+        double r = linear(((argb >> 16) & 0xff) / 255.0);
+        double g = linear(((argb >> 8) & 0xff) / 255.0);
+        double b = linear((argb & 0xff) / 255.0);
+        double x = (0.4124 * r + 0.3576 * g + 0.1805 * b) / 0.95047;
+        double y = 0.2126 * r + 0.7152 * g + 0.0722 * b;
+        double z = (0.0193 * r + 0.1192 * g + 0.9505 * b) / 1.08883;
+        double fx = labCurve(x);
+        double fy = labCurve(y);
+        double fz = labCurve(z);
+        double alpha = ((argb >>> 24) & 0xff) / 255.0 * 100.0;
+        return new double[] {116 * fy - 16, 500 * (fx - fy), 200 * (fy - fz), alpha};
+    }
+
+    private static double linear(double channel) {
+        return channel <= 0.04045 ? channel / 12.92 : Math.pow((channel + 0.055) / 1.055, 2.4);
+    }
+
+    private static double labCurve(double t) {
+        return t > 216.0 / 24389.0 ? Math.cbrt(t) : (24389.0 / 27.0 * t + 16) / 116.0;
+    }
+}
@@ -0,0 +1,322 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Потоковая запись кода процессоров одного дисплея.
+ * <p>
+ * Команды draw color / draw rect пишутся сразу в переиспользуемый байтовый буфер ({@link CodeBuffer}),
+ * без String.format и промежуточных строк, а буфер сбрасывается в файл текущего процессора.
+ * Каждый файл закрывается строкой "drawflush display1". Разбиение дисплея раскладывается по процессорам
+ * {@link ProcessorPacker}: группа цвета разрезается только между процессорами, и каждая ее часть
+ * начинается со своего draw color. При записи отдельных команд через color/rect процессор сменяется,
+ * как только в нем набирается commandsPerProcessor инструкций.
+ * <p>
+ * Буфер рисования процессора вмещает ограниченное число команд (см. {@link TickSimulator}), поэтому после
+ * каждых flushLimit команд рисования вставляется промежуточный drawflush. Цвет рисования - общее состояние
+ * дисплея, и между сбросами его может сменить другой процессор, поэтому если после сброса группа цвета
+ * продолжается, ее draw color повторяется. Каждый сброс записывается в модель {@link TickSimulator}.
+ * <p>
+ * Если первый цвет разбиения - один прямоугольник на весь дисплей
+ * (фон послойного разбиения, см. {@link LayeredDecomposer}), он записывается одной командой draw clear.
+ * Процессоры дисплея крутят свой код независимо, поэтому процессор с draw clear после drawflush
+ * останавливается (stop): иначе каждый его проход стирал бы то, что нарисовали остальные.
+ */
+class CommandEmitter implements Closeable {
+    static final byte[] DRAW_FLUSH = "drawflush display1".getBytes();
+    static final byte[] STOP = "stop".getBytes();
+
+    private final Path directory;
+    private final int displayIndex;
+    private final int commandsPerProcessor;
+    private final int flushLimit;
+    private final CodeBuffer code = new CodeBuffer();
+    private final TickSimulator ticks = new TickSimulator();
+
+    private int processorCount;
+    /** Инструкции текущего процессора без завершающего drawflush: команды рисования и промежуточные сбросы. */
+    private int commandsInProcessor;
+    private int commandCount;
+    /** Команды рисования и их площадь с последнего drawflush. */
+    private int commandsInFlush;
+    private long areaInFlush;
+    /** Последний draw color: повторяется, если группа цвета продолжается после сброса или в новом процессоре. */
+    private int currentColor;
+    private boolean hasColor;
+    /** Текущий процессор содержит draw clear и после drawflush должен остановиться. */
+    private boolean stopAfterFlush;
+    /** Число команд в каждом записанном процессоре. */
+    private final List<Integer> processorFill = new ArrayList<>();
+
+    /**
+     * @param directory Папка для файлов display_N_proc_P.txt.
+     * @param displayIndex Номер дисплея (N в имени файла).
+     * @param commandsPerProcessor Сколько инструкций помещается в один процессор (без завершающего drawflush).
+     * @param flushLimit Сколько команд рисования записывается между двумя drawflush, не меньше 2.
+     */
+    public CommandEmitter(Path directory, int displayIndex, int commandsPerProcessor, int flushLimit) {
+        if (flushLimit < 2) {
+            throw new IllegalArgumentException("Между drawflush должно помещаться хотя бы 2 команды: " + flushLimit);
+        }
+        this.directory = directory;
+        this.displayIndex = displayIndex;
+        this.commandsPerProcessor = commandsPerProcessor;
+        this.flushLimit = flushLimit;
+    }
+
+    /**
+     * Записывает разбиение фрагмента: по draw color на часть группы цвета в процессоре и draw rect
+     * на каждый прямоугольник. Координаты переводятся в систему дисплея: сдвиг на рамку и инверсия Y для Mindustry.
+     */
+    public void emitRects(Map<Integer, List<Rect>> rects, int displayPixelSize, int offsetX, int offsetY) throws IOException {
+        Map.Entry<Integer, List<Rect>> first = rects.isEmpty() ? null : rects.entrySet().iterator().next();
+        boolean clearFirst = first != null && isBackground(first.getKey(), first.getValue(), displayPixelSize, offsetX, offsetY);
+        emitPacked(rects, clearFirst, displayPixelSize, offsetX, offsetY);
+    }
+
+    /**
+     * Стоимость разбиения - ровно то, что запишет emitRects, с промежуточными drawflush, повторами draw color
+     * и stop после draw clear: разбиение раскладывается и записывается тем же кодом, только в пустоту.
+     * @param clearFirst Первый цвет - фон, записываемый командой draw clear.
+     */
+    static Cost measure(Map<Integer, List<Rect>> rects, boolean clearFirst, int commandsPerProcessor, int flushLimit) {
+        CommandEmitter counter = new CommandEmitter(null, 0, commandsPerProcessor, flushLimit) {
+            @Override
+            protected WritableByteChannel openProcessor(int processorIndex) {
+                return Channels.newChannel(OutputStream.nullOutputStream());
+            }
+        };
+        try (counter) {
+            counter.emitPacked(rects, clearFirst, 0, 0, 0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        int instructions = clearFirst && !rects.isEmpty() ? 1 : 0;
+        for (int fill : counter.getProcessorFill()) {
+            instructions += fill;
+        }
+        return new Cost(counter.getProcessorCount(), instructions);
+    }
+
+    private void emitPacked(Map<Integer, List<Rect>> rects, boolean clearFirst, int displayPixelSize, int offsetX, int offsetY) throws IOException {
+        for (ProcessorPacker.Bin bin : ProcessorPacker.pack(rects, drawCapacity(commandsPerProcessor, flushLimit), clearFirst)) {
+            for (ProcessorPacker.Piece piece : bin.pieces) {
+                if (piece.clear) {
+                    clear(piece.color);
+                    areaInFlush += (long) displayPixelSize * displayPixelSize;
+                    continue;
+                }
+                color(piece.color);
+                for (Rect rect : piece.rects) {
+                    int correctedX = rect.x - offsetX;
+                    int correctedY = rect.y - offsetY;
+                    int mindustryY = displayPixelSize - correctedY - rect.h;
+                    rect(correctedX, mindustryY, rect.w, rect.h);
+                    // Площадь в пределах дисплея: рамка фрагмента за его краем не видна.
+                    int visibleW = Math.min(correctedX + rect.w, displayPixelSize) - Math.max(correctedX, 0);
+                    int visibleH = Math.min(correctedY + rect.h, displayPixelSize) - Math.max(correctedY, 0);
+                    if (visibleW > 0 && visibleH > 0) {
+                        areaInFlush += (long) visibleW * visibleH;
+                    }
+                }
+            }
+            finishProcessor();
+        }
+    }
+
+    /**
+     * Сколько команд рисования гарантированно помещается в процессор: каждые flushLimit - 1 команд
+     * могут стоить еще двух инструкций - промежуточного drawflush и повторного draw color.
+     */
+    static int drawCapacity(int commandsPerProcessor, int flushLimit) {
+        int capacity = commandsPerProcessor;
+        while (capacity > 1) {
+            int flushes = (capacity + flushLimit - 2) / (flushLimit - 1);
+            if (capacity + 2 * (flushes - 1) <= commandsPerProcessor) {
+                break;
+            }
+            capacity--;
+        }
+        return capacity;
+    }
+
+    /**
+     * Стоимость разбиения дисплея: число процессоров и инструкций в них (со stop, без завершающих drawflush).
+     */
+    static class Cost {
+        final int processors;
+        final int instructions;
+
+        Cost(int processors, int instructions) {
+            this.processors = processors;
+            this.instructions = instructions;
+        }
+
+        /**
+         * Меньше процессоров, а при том же числе процессоров - меньше инструкций.
+         */
+        boolean cheaperThan(Cost other) {
+            return processors != other.processors ? processors < other.processors : instructions < other.instructions;
+        }
+
+        /**
+         * Укладывается в бюджет инструкций и не занимает больше процессоров, чем нужно на бюджет
+         * (бюджет не больше одного процессора - один процессор).
+         */
+        boolean fits(int budget, int commandsPerProcessor) {
+            return instructions <= budget && processors <= Math.max(1, (budget + commandsPerProcessor - 1) / commandsPerProcessor);
+        }
+    }
+
+    /**
+     * Непрозрачный цвет с единственным прямоугольником ровно на весь дисплей.
+     */
+    private static boolean isBackground(int argb, List<Rect> rectList, int displayPixelSize, int offsetX, int offsetY) {
+        if ((argb >>> 24) != 0xff || rectList.size() != 1) {
+            return false;
+        }
+        Rect rect = rectList.get(0);
+        return rect.x == offsetX && rect.y == offsetY && rect.w == displayPixelSize && rect.h == displayPixelSize;
+    }
+
+    /**
+     * draw clear r g b 0 0 0 - заливка всего дисплея; процессор с ней останавливается после drawflush.
+     */
+    public void clear(int rgb) throws IOException {
+        beginCommand(false);
+        code.putClear(rgb);
+        stopAfterFlush = true;
+    }
+
+    /**
+     * draw color r g b a 0 0
+     */
+    public void color(int argb) throws IOException {
+        currentColor = argb;
+        hasColor = true;
+        beginCommand(false);
+        code.putColor(argb);
+    }
+
+    /**
+     * draw rect x y w h 0 0
+     */
+    public void rect(int x, int y, int w, int h) throws IOException {
+        beginCommand(true);
+        code.putRect(x, y, w, h);
+    }
+
+    public int getCommandCount() {
+        return commandCount;
+    }
+
+    public int getProcessorCount() {
+        return processorCount;
+    }
+
+    /**
+     * Модель прорисовки этого дисплея по записанным drawflush; вызывать после записи всех команд.
+     */
+    public TickSimulator.Result simulate(int instructionsPerTick) {
+        return ticks.simulate(instructionsPerTick);
+    }
+
+    /**
+     * Заполнение процессоров: сколько инструкций (без завершающих drawflush и stop) записано в каждый закрытый процессор.
+     */
+    public int[] getProcessorFill() {
+        return processorFill.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    /**
+     * Завершает последний процессор. Если команд не было, файлы не создаются.
+     */
+    @Override
+    public void close() throws IOException {
+        finishProcessor();
+    }
+
+    /**
+     * Открывает канал для кода процессора с номером processorIndex.
+     */
+    protected WritableByteChannel openProcessor(int processorIndex) throws IOException {
+        return openProcessorFile(directory, displayIndex, processorIndex);
+    }
+
+    static WritableByteChannel openProcessorFile(Path directory, int displayIndex, int processorIndex) throws IOException {
+        Path file = directory.resolve("display_" + displayIndex + "_proc_" + processorIndex + ".txt");
+        return FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Место под очередную команду: промежуточный drawflush, если буфер полон, или новый процессор.
+     * @param rect Команда - draw rect: в начале нового буфера перед ней повторяется текущий цвет.
+     */
+    private void beginCommand(boolean rect) throws IOException {
+        boolean flush = code.isOpen() && commandsInFlush == flushLimit;
+        int needed = 1 + (flush ? 1 : 0) + (flush && rect && hasColor ? 1 : 0);
+        // Остановка - тоже инструкция процессора, под нее оставляем место.
+        if (code.isOpen() && commandsInProcessor + needed > commandsPerProcessor - (stopAfterFlush ? 1 : 0)) {
+            finishProcessor();
+        }
+        if (!code.isOpen()) {
+            code.open(openProcessor(processorCount++));
+            commandsInProcessor = 0;
+            commandsInFlush = 0;
+            areaInFlush = 0;
+            if (rect && hasColor) {
+                repeatColor();
+            }
+        } else if (flush) {
+            recordFlush();
+            code.line().put(DRAW_FLUSH).put('\n');
+            commandsInProcessor++;
+            commandsInFlush = 0;
+            areaInFlush = 0;
+            if (rect && hasColor) {
+                repeatColor();
+            }
+        }
+        commandsInProcessor++;
+        commandsInFlush++;
+        commandCount++;
+    }
+
+    private void repeatColor() throws IOException {
+        code.putColor(currentColor);
+        commandsInProcessor++;
+        commandsInFlush++;
+        commandCount++;
+    }
+
+    /**
+     * drawflush, который сейчас будет записан, - следующая инструкция процессора.
+     */
+    private void recordFlush() {
+        ticks.flush(processorCount - 1, commandsInProcessor + 1, commandsInFlush, areaInFlush);
+    }
+
+    private void finishProcessor() throws IOException {
+        if (code.isOpen()) {
+            recordFlush();
+            code.line().put(DRAW_FLUSH);
+            if (stopAfterFlush) {
+                code.line().put('\n').put(STOP);
+                stopAfterFlush = false;
+            }
+            code.close();
+            processorFill.add(commandsInProcessor);
+        }
+    }
+}
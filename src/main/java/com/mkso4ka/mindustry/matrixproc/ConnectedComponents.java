@@ -0,0 +1,134 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.Arrays;
+
+/**
+ * Разметка одноцветных связных областей (4-связность) через систему непересекающихся множеств.
+ * Прямоугольник одного цвета никогда не выходит за пределы своей области, поэтому области
+ * можно разбивать на прямоугольники независимо друг от друга.
+ */
+class ConnectedComponents {
+    /** Количество областей. */
+    final int count;
+    /**
+     * Номер области для каждого пикселя (индекс y * width + x). Номера идут в порядке первого пикселя области.
+     * Пиксели вне маски получают номер -1.
+     */
+    final int[] labels;
+    /** Ограничивающие прямоугольники областей (включительно). */
+    final int[] minX;
+    final int[] minY;
+    final int[] maxX;
+    final int[] maxY;
+    /** Количество пикселей в каждой области. */
+    final int[] size;
+
+    private ConnectedComponents(int count, int[] labels) {
+        this.count = count;
+        this.labels = labels;
+        this.minX = new int[count];
+        this.minY = new int[count];
+        this.maxX = new int[count];
+        this.maxY = new int[count];
+        this.size = new int[count];
+        Arrays.fill(minX, Integer.MAX_VALUE);
+        Arrays.fill(minY, Integer.MAX_VALUE);
+    }
+
+    int boundsWidth(int label) {
+        return maxX[label] - minX[label] + 1;
+    }
+
+    int boundsHeight(int label) {
+        return maxY[label] - minY[label] + 1;
+    }
+
+    public static ConnectedComponents label(Pixmap pixmap) {
+        return label(pixmap, null);
+    }
+
+    /**
+     * Разметка только пикселей маски: пиксели вне маски не входят ни в одну область и не связывают соседей.
+     * @param mask Маска с индексом y * width + x или null, чтобы разметить все пиксели.
+     */
+    public static ConnectedComponents label(Pixmap pixmap, boolean[] mask) {
+        int width = pixmap.getWidth();
+        int height = pixmap.getHeight();
+        int stride = pixmap.getStride();
+        int[] pixels = pixmap.getPixels();
+        int[] parent = new int[width * height];
+
+        // 1. Объединяем каждый пиксель с левым и верхним соседом того же цвета.
+        for (int y = 0; y < height; y++) {
+            int pixelRow = y * stride;
+            for (int x = 0; x < width; x++) {
+                int index = y * width + x;
+                parent[index] = index;
+                if (mask != null && !mask[index]) {
+                    continue;
+                }
+                int color = pixels[pixelRow + x];
+                if (x > 0 && pixels[pixelRow + x - 1] == color && (mask == null || mask[index - 1])) {
+                    union(parent, index, index - 1);
+                }
+                if (y > 0 && pixels[pixelRow - stride + x] == color && (mask == null || mask[index - width])) {
+                    union(parent, index, index - width);
+                }
+            }
+        }
+
+        // 2. Переводим корни в компактные номера в порядке первого пикселя области.
+        int[] labels = new int[width * height];
+        int count = 0;
+        for (int index = 0; index < labels.length; index++) {
+            if (mask != null && !mask[index]) {
+                labels[index] = -1;
+                continue;
+            }
+            int root = find(parent, index);
+            if (root == index) {
+                labels[index] = count++;
+            } else {
+                // Корень всегда находится раньше по индексу (объединяем к меньшему), поэтому уже размечен.
+                labels[index] = labels[root];
+            }
+        }
+
+        ConnectedComponents components = new ConnectedComponents(count, labels);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int label = labels[y * width + x];
+                if (label < 0) {
+                    continue;
+                }
+                components.minX[label] = Math.min(components.minX[label], x);
+                components.minY[label] = Math.min(components.minY[label], y);
+                components.maxX[label] = Math.max(components.maxX[label], x);
+                components.maxY[label] = Math.max(components.maxY[label], y);
+                components.size[label]++;
+            }
+        }
+        return components;
+    }
+
+    private static int find(int[] parent, int index) {
+        while (parent[index] != index) {
+            parent[index] = parent[parent[index]];
+            index = parent[index];
+        }
+        return index;
+    }
+
+    /**
+     * Объединяет множества, подвешивая больший корень к меньшему: корень - всегда первый пиксель области.
+     */
+    private static void union(int[] parent, int a, int b) {
+        int rootA = find(parent, a);
+        int rootB = find(parent, b);
+        if (rootA < rootB) {
+            parent[rootB] = rootA;
+        } else if (rootB < rootA) {
+            parent[rootA] = rootB;
+        }
+    }
+}
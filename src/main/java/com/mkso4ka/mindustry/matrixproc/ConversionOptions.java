@@ -0,0 +1,82 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.File;
+
+/**
+ * Параметры конвертации одного изображения. Значения по умолчанию - прежние константы из Main.
+ */
+class ConversionOptions {
+    /** Изображение, GIF или папка с пронумерованными PNG-кадрами (для анимации). */
+    File source;
+    /** Режим анимации: source - GIF или папка с кадрами. */
+    boolean animation = false;
+    int displaysX = 1;
+    int displaysY = 1;
+    /** Размер дисплея в блоках: 3 или 6. */
+    int displaySize = 3;
+    /** Размер палитры после квантования (0 - без квантования). */
+    int paletteSize = 0;
+    /** Одна палитра на всю стену или своя на каждый фрагмент. */
+    boolean sharedPalette = true;
+    /** Бюджет команд на дисплей для режима с потерями (0 - точное разбиение без потерь). */
+    int commandBudget = 0;
+    /** Время на улучшение разбиения каждого фрагмента (RectangleOptimizer), мс (0 - только жадное разбиение). */
+    int optimizeMillis = 0;
+    /** Послойное разбиение: фон одной командой draw clear, остальные цвета поверх. */
+    boolean layered = false;
+    /** Сколько команд рисования записывается между двумя drawflush (буфер процессора вмещает 256). */
+    int flushLimit = TickSimulator.MAX_GRAPHICS_BUFFER;
+    /** Кодировщик PNG для схемы размещения. */
+    PngWriter.Encoder schematicEncoder = PngWriter.Encoder.FAST;
+    /** Фильтр масштабирования исходника до размера стены. */
+    Resampler.Filter filter = Resampler.Filter.NEAREST;
+    /** Читать исходник по областям фрагментов даже если он меньше RegionDecoder.AUTO_MIN_PIXELS. */
+    boolean regionDecode = false;
+    DebugOutput.Level debugLevel = DebugOutput.Level.FULL;
+    /** Папка результатов изображения: в ней создаются output_images и outputProcessors. */
+    File outputDir = new File(".");
+
+    /**
+     * Проверка значений, общая для командной строки, манифеста пакета и HTTP-сервиса: ошибка сразу,
+     * а не в каждом фрагменте при записи кода.
+     * @throws IllegalArgumentException Недопустимое значение.
+     */
+    void validate() {
+        if (displaySize != 3 && displaySize != 6) {
+            throw new IllegalArgumentException("Размер дисплея должен быть 3 или 6: " + displaySize);
+        }
+        if (flushLimit < 2) {
+            throw new IllegalArgumentException("flush должен быть не меньше 2: " + flushLimit);
+        }
+        if (paletteSize < 0) {
+            throw new IllegalArgumentException("palette не может быть отрицательным: " + paletteSize);
+        }
+        if (commandBudget < 0) {
+            throw new IllegalArgumentException("budget не может быть отрицательным: " + commandBudget);
+        }
+        if (optimizeMillis < 0) {
+            throw new IllegalArgumentException("optimize не может быть отрицательным: " + optimizeMillis);
+        }
+    }
+
+    ConversionOptions copy() {
+        ConversionOptions copy = new ConversionOptions();
+        copy.source = source;
+        copy.animation = animation;
+        copy.displaysX = displaysX;
+        copy.displaysY = displaysY;
+        copy.displaySize = displaySize;
+        copy.paletteSize = paletteSize;
+        copy.sharedPalette = sharedPalette;
+        copy.commandBudget = commandBudget;
+        copy.optimizeMillis = optimizeMillis;
+        copy.layered = layered;
+        copy.flushLimit = flushLimit;
+        copy.schematicEncoder = schematicEncoder;
+        copy.filter = filter;
+        copy.regionDecode = regionDecode;
+        copy.debugLevel = debugLevel;
+        copy.outputDir = outputDir;
+        return copy;
+    }
+}
@@ -0,0 +1,318 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Встроенный HTTP-сервис конвертации для долгоживущего процесса: без запуска JVM на каждое изображение,
+ * с прогретым JIT, общим cpuPool и общим кэшем фрагментов. Слушает только 127.0.0.1.
+ * <p>
+ * POST /convert?displays=3x2&size=3&palette=0&budget=0&optimize=500&layered=1&tilePalette=1&animation=1&filter=box&regionDecode=1 - тело запроса: изображение
+ * (или GIF при animation=1). Ответ - zip-поток: outputProcessors/*.txt, final_schematic.png, run_report.json и log.txt.
+ * GET /health - состояние очереди.
+ * <p>
+ * Виртуальных потоков в JDK 17 нет, поэтому запрос обслуживает обычный поток кэширующего пула, а их число
+ * ограничивает допуск: одновременно конвертируются не больше maxConcurrent запросов, еще queueCapacity ждут
+ * своей очереди, остальным сразу отвечаем 503 с Retry-After - чтобы не копить изображения в памяти.
+ * Допуск считает запросы, а не их стоимость, поэтому параметры, от которых растут память и время
+ * одного запроса (число дисплеев, время оптимизатора, размер палитры), ограничены сверху: больше - 400.
+ */
+class ConversionServer {
+    /** Предельный размер загружаемого изображения. */
+    static final long MAX_UPLOAD_BYTES = 64L * 1024 * 1024;
+    /** Предельное число дисплеев в стене: 8x8 дисплеев 6x6 - около 1400x1400 пикселей. */
+    static final int MAX_DISPLAYS = 64;
+    /** Предельное время оптимизатора на фрагмент, мс: с 64 фрагментами это минуты, а не часы. */
+    static final int MAX_OPTIMIZE_MILLIS = 5_000;
+    /** Предельный размер палитры. */
+    static final int MAX_PALETTE_SIZE = 256;
+
+    private final HttpServer server;
+    private final ExecutorService handlerPool;
+    private final ForkJoinPool cpuPool;
+    private final int threads;
+    private final TileCache cache;
+    // Допущенные запросы: выполняются и ожидают в очереди.
+    private final Semaphore admitted;
+    // Одновременно выполняемые конвертации.
+    private final Semaphore running;
+    private final AtomicInteger served = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private final int admissionLimit;
+    private final CountDownLatch stopped = new CountDownLatch(1);
+    private volatile boolean stopping;
+
+    private ConversionServer(HttpServer server, ForkJoinPool cpuPool, int threads, TileCache cache,
+                             int maxConcurrent, int queueCapacity) {
+        this.server = server;
+        this.cpuPool = cpuPool;
+        this.threads = threads;
+        this.cache = cache;
+        this.admissionLimit = maxConcurrent + queueCapacity;
+        this.admitted = new Semaphore(admissionLimit);
+        this.running = new Semaphore(maxConcurrent, true);
+        this.handlerPool = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "matrixproc-http");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(handlerPool);
+        server.createContext("/convert", this::handleConvert);
+        server.createContext("/health", this::handleHealth);
+    }
+
+    /**
+     * Запускает сервер на 127.0.0.1:port.
+     * @param maxConcurrent Сколько изображений конвертируется одновременно.
+     * @param queueCapacity Сколько запросов может ждать сверх maxConcurrent.
+     */
+    static ConversionServer start(int port, ForkJoinPool cpuPool, int threads, TileCache cache,
+                                  int maxConcurrent, int queueCapacity) throws IOException {
+        HttpServer http = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        ConversionServer server = new ConversionServer(http, cpuPool, threads, cache, maxConcurrent, queueCapacity);
+        http.start();
+        return server;
+    }
+
+    int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    /**
+     * Останавливает прием запросов, дает текущим до 30 секунд на завершение. Ждем сами по семафору
+     * допуска: HttpServer.stop(delay) в JDK 17 выжидает всю задержку, даже когда запросов нет.
+     */
+    void stop() {
+        stopping = true;
+        try {
+            admitted.tryAcquire(admissionLimit, 30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server.stop(0);
+        handlerPool.shutdown();
+        stopped.countDown();
+    }
+
+    void awaitStop() throws InterruptedException {
+        stopped.await();
+    }
+
+    private void handleHealth(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String body = "{\"freeSlots\": " + running.availablePermits() + ", \"freeAdmission\": " + admitted.availablePermits()
+                + ", \"served\": " + served.get() + ", \"rejected\": " + rejected.get() + "}\n";
+            sendText(exchange, 200, "application/json", body);
+        }
+    }
+
+    private void handleConvert(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                sendText(exchange, 405, "text/plain", "Нужен POST с изображением в теле запроса.\n");
+                return;
+            }
+            ConversionOptions options;
+            try {
+                options = parseQuery(exchange.getRequestURI().getRawQuery());
+            } catch (IllegalArgumentException e) {
+                sendText(exchange, 400, "text/plain", e.getMessage() + "\n");
+                return;
+            }
+            if (stopping || !admitted.tryAcquire()) {
+                rejected.incrementAndGet();
+                exchange.getResponseHeaders().set("Retry-After", "5");
+                sendText(exchange, 503, "text/plain", "Сервер занят, повторите позже.\n");
+                return;
+            }
+            try {
+                convert(exchange, options);
+            } finally {
+                admitted.release();
+            }
+        }
+    }
+
+    private void convert(HttpExchange exchange, ConversionOptions options) throws IOException {
+        Path workDir = Files.createTempDirectory("matrixproc-");
+        try {
+            File source = new File(workDir.toFile(), options.animation ? "input.gif" : "input.png");
+            if (!readUpload(exchange.getRequestBody(), source.toPath())) {
+                sendText(exchange, 413, "text/plain", "Изображение больше " + MAX_UPLOAD_BYTES / (1024 * 1024) + " МиБ.\n");
+                return;
+            }
+            options.source = source;
+            options.outputDir = workDir.toFile();
+
+            ByteArrayOutputStream logBytes = new ByteArrayOutputStream();
+            ImageConversion.Result result;
+            try (PrintStream log = new PrintStream(logBytes, true, StandardCharsets.UTF_8)) {
+                running.acquire();
+                try {
+                    result = ImageConversion.convert(options, cpuPool, threads, cache, log);
+                } catch (Exception e) {
+                    e.printStackTrace(log);
+                    log.flush();
+                    sendText(exchange, 500, "text/plain", logBytes.toString(StandardCharsets.UTF_8));
+                    return;
+                } finally {
+                    running.release();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendText(exchange, 503, "text/plain", "Сервер останавливается.\n");
+                return;
+            }
+            served.incrementAndGet();
+
+            exchange.getResponseHeaders().set("Content-Type", "application/zip");
+            exchange.getResponseHeaders().set("Content-Disposition", "attachment; filename=\"matrixproc.zip\"");
+            exchange.getResponseHeaders().set("X-Processors-Required", String.valueOf(result.requiredProcessors));
+            exchange.getResponseHeaders().set("X-Processors-Placed", String.valueOf(result.placedProcessors));
+            // Длина заранее неизвестна - ответ уходит кусками по мере упаковки.
+            exchange.sendResponseHeaders(200, 0);
+            try (ZipOutputStream zip = new ZipOutputStream(exchange.getResponseBody())) {
+                Path processors = workDir.resolve("outputProcessors");
+                for (Path file : listFiles(processors)) {
+                    addEntry(zip, "outputProcessors/" + file.getFileName(), Files.readAllBytes(file));
+                }
+                Path images = workDir.resolve("output_images");
+                addEntry(zip, "final_schematic.png", Files.readAllBytes(images.resolve("final_schematic.png")));
+                addEntry(zip, "run_report.json", Files.readAllBytes(images.resolve("run_report.json")));
+                addEntry(zip, "log.txt", logBytes.toByteArray());
+            }
+        } finally {
+            deleteRecursively(workDir);
+        }
+    }
+
+    /**
+     * Параметры из строки запроса; по умолчанию - как у командной строки, отладочные изображения выключены.
+     */
+    static ConversionOptions parseQuery(String rawQuery) {
+        ConversionOptions options = new ConversionOptions();
+        options.debugLevel = DebugOutput.Level.OFF;
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return options;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String key = URLDecoder.decode(eq < 0 ? pair : pair.substring(0, eq), StandardCharsets.UTF_8);
+            String value = eq < 0 ? "" : URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+            try {
+                switch (key) {
+                    case "displays": Main.parseGrid(value, options); break;
+                    case "size": options.displaySize = Integer.parseInt(value); break;
+                    case "palette": options.paletteSize = Integer.parseInt(value); break;
+                    case "tilePalette": options.sharedPalette = !flag(value); break;
+                    case "budget": options.commandBudget = Integer.parseInt(value); break;
+                    case "optimize": options.optimizeMillis = Integer.parseInt(value); break;
+                    case "layered": options.layered = flag(value); break;
+                    case "flush": options.flushLimit = Integer.parseInt(value); break;
+                    case "animation": options.animation = flag(value); break;
+                    case "regionDecode": options.regionDecode = flag(value); break;
+                    case "filter": options.filter = Resampler.Filter.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                    case "encoder": options.schematicEncoder = PngWriter.Encoder.valueOf(value.toUpperCase(Locale.ROOT)); break;
+                    default: throw new IllegalArgumentException("Неизвестный параметр: " + key);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Ожидалось число для " + key + ": " + value);
+            }
+        }
+        options.validate();
+        if ((long) options.displaysX * options.displaysY > MAX_DISPLAYS) {
+            throw new IllegalArgumentException("Не больше " + MAX_DISPLAYS + " дисплеев: "
+                + options.displaysX + "x" + options.displaysY);
+        }
+        if (options.optimizeMillis > MAX_OPTIMIZE_MILLIS) {
+            throw new IllegalArgumentException("optimize должен быть от 0 до " + MAX_OPTIMIZE_MILLIS + ": " + options.optimizeMillis);
+        }
+        if (options.paletteSize > MAX_PALETTE_SIZE) {
+            throw new IllegalArgumentException("palette должен быть от 0 до " + MAX_PALETTE_SIZE + ": " + options.paletteSize);
+        }
+        return options;
+    }
+
+    private static boolean flag(String value) {
+        return value.isEmpty() || value.equals("1") || value.equalsIgnoreCase("true");
+    }
+
+    /**
+     * Копирует тело запроса в файл.
+     * @return false, если тело больше MAX_UPLOAD_BYTES.
+     */
+    private static boolean readUpload(InputStream in, Path target) throws IOException {
+        long total = 0;
+        byte[] buffer = new byte[64 * 1024];
+        try (OutputStream out = Files.newOutputStream(target)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+                if (total > MAX_UPLOAD_BYTES) {
+                    return false;
+                }
+                out.write(buffer, 0, read);
+            }
+        }
+        return true;
+    }
+
+    private static List<Path> listFiles(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    private static void addEntry(ZipOutputStream zip, String name, byte[] content) throws IOException {
+        zip.putNextEntry(new ZipEntry(name));
+        zip.write(content);
+        zip.closeEntry();
+    }
+
+    private static void sendText(HttpExchange exchange, int status, String contentType, String text) throws IOException {
+        byte[] body = text.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", contentType + "; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    private static void deleteRecursively(Path directory) {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        } catch (IOException e) {
+            System.err.println("Не удалось удалить временную папку " + directory + ": " + e.getMessage());
+        }
+    }
+}
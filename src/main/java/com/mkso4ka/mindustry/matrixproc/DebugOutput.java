@@ -0,0 +1,104 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Отладочные изображения. Рисование и кодирование PNG выполняются в фоновом пуле, а не в потоке,
+ * который их запросил. Очередь пула ограничена: когда она заполнена, задачу выполняет сам вызывающий
+ * поток (CallerRunsPolicy). Так конвейер притормаживает, а память не растет. На уровне OFF пул
+ * не создается и изображения не строятся вовсе.
+ */
+class DebugOutput implements AutoCloseable {
+    enum Level {
+        /** Ничего не пишется. */
+        OFF,
+        /** Только общие изображения на весь запуск (масштабированное исходное). */
+        SUMMARY,
+        /** Плюс по три изображения на каждый фрагмент. */
+        FULL
+    }
+
+    private final Level level;
+    private final File outputDir;
+    private final PngWriter.Encoder encoder;
+    private final ThreadPoolExecutor executor;
+    private final AtomicInteger written = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    /**
+     * @param threads Потоков записи.
+     * @param queueCapacity Сколько изображений может ждать записи, прежде чем писать начнет вызывающий поток.
+     */
+    DebugOutput(Level level, File outputDir, PngWriter.Encoder encoder, int threads, int queueCapacity) {
+        this.level = level;
+        this.outputDir = outputDir;
+        this.encoder = encoder;
+        if (level == Level.OFF) {
+            this.executor = null;
+        } else {
+            AtomicInteger threadNumber = new AtomicInteger();
+            this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueCapacity),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "debug-output-" + threadNumber.incrementAndGet());
+                    // Отладка не должна держать JVM, если конвейер упал и close() не вызван.
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        }
+    }
+
+    public boolean isEnabled(Level required) {
+        return level != Level.OFF && level.compareTo(required) >= 0;
+    }
+
+    /**
+     * Ставит изображение в очередь записи, если включен уровень required. Само изображение строится
+     * уже в фоновом потоке, поэтому image не должен зависеть от данных, которые вызывающий изменит позже.
+     */
+    public void write(Level required, String fileName, Supplier<BufferedImage> image) {
+        if (!isEnabled(required)) {
+            return;
+        }
+        executor.execute(() -> {
+            File file = new File(outputDir, fileName);
+            try {
+                PngWriter.write(image.get(), file, encoder);
+                written.incrementAndGet();
+            } catch (IOException | RuntimeException e) {
+                failed.incrementAndGet();
+                System.err.println("Ошибка при сохранении отладочного изображения " + file + ": " + e.getMessage());
+            }
+        });
+    }
+
+    public int getWritten() {
+        return written.get();
+    }
+
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Дожидается записи всех поставленных в очередь изображений.
+     */
+    @Override
+    public void close() throws InterruptedException {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+            System.out.println("   Ожидание записи отладочных изображений...");
+        }
+    }
+}
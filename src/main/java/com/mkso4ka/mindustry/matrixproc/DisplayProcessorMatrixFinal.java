@@ -2,41 +2,38 @@ package com.mkso4ka.mindustry.matrixproc;
 
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Queue;
-import java.util.Set;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
 
 class DisplayProcessorMatrixFinal {
     public static final double PROCESSOR_REACH = 10.2;
     private static final double PROCESSOR_REACH_SQ = PROCESSOR_REACH * PROCESSOR_REACH;
+    private static final int CELL_SIZE = 10;
+    private static final int WHITE = 0xffffff;
+    private static final int BLACK = 0x000000;
+    private static final int LIGHT_GRAY = Color.LIGHT_GRAY.getRGB() & WHITE;
 
     private final int n;
     private final int m;
-    private final Cell[][] matrix;
+    /** Тип клетки (индекс x * m + y): 0 - свободна, 1 - процессор, 2 - дисплей. */
+    private final byte[] types;
+    /** Владелец клетки: id дисплея, -1 - нет, -2 - место процессора, еще не отданное дисплею. */
+    private final int[] owners;
     private final DisplayInfo[] displays;
     private final int displaySize;
 
-    private static class Cell {
-        int type = 0;
-        int ownerId = -1;
-    }
-
     public DisplayProcessorMatrixFinal(int n, int m, int[] processorsPerDisplay, int[][] displayCenters, int displaySize) {
         this.n = n;
         this.m = m;
         this.displaySize = displaySize;
-        this.matrix = new Cell[n][m];
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < m; j++) {
-                matrix[i][j] = new Cell();
-            }
-        }
+        this.types = new byte[n * m];
+        this.owners = new int[n * m];
+        Arrays.fill(owners, -1);
         this.displays = new DisplayInfo[displayCenters.length];
         for (int i = 0; i < displayCenters.length; i++) {
             Point center = new Point(displayCenters[i][0], displayCenters[i][1]);
@@ -54,170 +51,317 @@ class DisplayProcessorMatrixFinal {
                 int currentX = display.center.x + i;
                 int currentY = display.center.y + j;
                 if (currentX >= 0 && currentX < n && currentY >= 0 && currentY < m) {
-                    matrix[currentX][currentY].type = 2;
-                    matrix[currentX][currentY].ownerId = display.id;
+                    setCell(currentX * m + currentY, 2, display.id);
                 }
             }
         }
     }
 
+    /**
+     * Тип клетки (x, y): 0 - свободна, 1 - процессор, 2 - дисплей.
+     */
+    public int getType(int x, int y) {
+        return types[x * m + y];
+    }
+
+    /**
+     * id дисплея, которому принадлежит клетка (x, y), или -1.
+     */
+    public int getOwner(int x, int y) {
+        return owners[x * m + y];
+    }
+
+    private void setCell(int index, int type, int owner) {
+        types[index] = (byte) type;
+        owners[index] = owner;
+    }
+
+    /**
+     * Размещение в два этапа. Этап 1 - обход в ширину от клеток дисплеев по всем свободным клеткам
+     * в радиусе процессора. Вместо объектов Point используются индексы клеток (x * m + y): очередь -
+     * массив int, посещенные клетки и зона досягаемости - битовые маски. Зона досягаемости
+     * строится один раз: каждый дисплей "отпечатывает" вокруг себя круг радиуса PROCESSOR_REACH.
+     * Этап 2 - места распределяются между дисплеями в их радиусе с учетом потребностей
+     * (поток минимальной стоимости, см. {@link ProcessorAssignment}); лишние места освобождаются.
+     */
     public void placeProcessors() {
-        System.out.println("--- ЭТАП 1: Максимальное заполнение (с радиусом процессора " + PROCESSOR_REACH + ") ---");
-        Queue<Point> queue = new LinkedList<>();
-        Set<Point> visited = new HashSet<>();
-        List<Point> genericProcessors = new ArrayList<>();
-        for (int i = 0; i < n; i++) {
-            for (int j = 0; j < m; j++) {
-                if (matrix[i][j].type == 2) {
-                    for (int dx = -1; dx <= 1; dx++) {
-                        for (int dy = -1; dy <= 1; dy++) {
-                            if (dx == 0 && dy == 0) continue;
-                            int nx = i + dx;
-                            int ny = j + dy;
-                            Point neighbor = new Point(nx, ny);
-                            if (nx >= 0 && nx < n && ny >= 0 && ny < m && matrix[nx][ny].type == 0 && !visited.contains(neighbor) && isWithinProcessorReachOfAnyDisplay(neighbor)) {
-                                queue.add(neighbor);
-                                visited.add(neighbor);
-                            }
-                        }
-                    }
-                }
+        placeProcessors(System.out);
+    }
+
+    /**
+     * То же, но статистика пишется в log (в пакетном режиме - в журнал своего изображения).
+     */
+    public void placeProcessors(PrintStream log) {
+        log.println("--- ЭТАП 1: Максимальное заполнение (с радиусом процессора " + PROCESSOR_REACH + ") ---");
+        long[] reach = buildReachMask();
+        long[] visited = new long[(n * m + 63) >>> 6];
+        // Каждая клетка попадает в очередь не больше одного раза, поэтому хватает массива на n * m.
+        int[] queue = new int[n * m];
+        int head = 0;
+        int tail = 0;
+        for (int index = 0; index < n * m; index++) {
+            if (types[index] == 2) {
+                tail = enqueueNeighbours(index / m, index % m, reach, visited, queue, tail);
             }
         }
-        while (!queue.isEmpty()) {
-            Point current = queue.poll();
-            matrix[current.x][current.y].type = 1;
-            matrix[current.x][current.y].ownerId = -2;
-            genericProcessors.add(current);
-            for (int dx = -1; dx <= 1; dx++) {
-                for (int dy = -1; dy <= 1; dy++) {
-                    if (dx == 0 && dy == 0) continue;
-                    int nx = current.x + dx;
-                    int ny = current.y + dy;
-                    Point neighbor = new Point(nx, ny);
-                    if (nx >= 0 && nx < n && ny >= 0 && ny < m && matrix[nx][ny].type == 0 && !visited.contains(neighbor) && isWithinProcessorReachOfAnyDisplay(neighbor)) {
-                        queue.add(neighbor);
-                        visited.add(neighbor);
+        while (head < tail) {
+            int current = queue[head++];
+            setCell(current, 1, -2);
+            tail = enqueueNeighbours(current / m, current % m, reach, visited, queue, tail);
+        }
+        // Очередь после обхода - это и есть список найденных мест в порядке обхода.
+        int genericCount = tail;
+        log.println("Заполнение завершено. Найдено " + genericCount + " возможных мест для процессоров.");
+        log.println("--- ЭТАП 2: Оптимальное распределение процессоров ---");
+        int[] required = new int[displays.length];
+        for (DisplayInfo display : displays) {
+            required[display.id] = Math.max(0, display.getProcessorsNeeded());
+        }
+        int[] assigned = assignCandidates(queue, genericCount, required);
+        for (int k = 0; k < genericCount; k++) {
+            if (assigned[k] >= 0) {
+                DisplayInfo owner = displays[assigned[k]];
+                owners[queue[k]] = owner.id;
+                owner.processorsPlaced++;
+            } else {
+                setCell(queue[k], 0, -1);
+            }
+        }
+        printFinalStats(log);
+    }
+
+    /**
+     * Ставит в очередь свободных соседей клетки (x, y), которые в зоне досягаемости и еще не посещены.
+     * @return Новый хвост очереди.
+     */
+    private int enqueueNeighbours(int x, int y, long[] reach, long[] visited, int[] queue, int tail) {
+        for (int dx = -1; dx <= 1; dx++) {
+            for (int dy = -1; dy <= 1; dy++) {
+                if (dx == 0 && dy == 0) continue;
+                int nx = x + dx;
+                int ny = y + dy;
+                int index = nx * m + ny;
+                if (nx >= 0 && nx < n && ny >= 0 && ny < m && types[index] == 0) {
+                    long bit = 1L << index;
+                    if ((reach[index >>> 6] & bit) != 0 && (visited[index >>> 6] & bit) == 0) {
+                        visited[index >>> 6] |= bit;
+                        queue[tail++] = index;
                     }
                 }
             }
         }
-        System.out.println("Заполнение завершено. Найдено " + genericProcessors.size() + " возможных мест для процессоров.");
-        System.out.println("--- ЭТАП 2: Оптимальное распределение процессоров ---");
-        for (Point procPoint : genericProcessors) {
-            DisplayInfo bestOwner = null;
-            double minDistanceSq = Double.MAX_VALUE;
-            for (DisplayInfo display : displays) {
-                if (display.getProcessorsNeeded() > 0) {
-                    double distSq = display.distanceSq(procPoint);
-                    if (distSq < minDistanceSq) {
-                        minDistanceSq = distSq;
-                        bestOwner = display;
+        return tail;
+    }
+
+    /**
+     * Битовая маска клеток (индекс x * m + y), до которых от какого-нибудь дисплея не дальше PROCESSOR_REACH.
+     */
+    private long[] buildReachMask() {
+        long[] reach = new long[(n * m + 63) >>> 6];
+        forEachReachableCell((display, index) -> reach[index >>> 6] |= 1L << index);
+        return reach;
+    }
+
+    private interface ReachVisitor {
+        void visit(DisplayInfo display, int index);
+    }
+
+    /**
+     * Перебирает "отпечаток" каждого дисплея - клетки, до которых от прямоугольника дисплея не дальше
+     * PROCESSOR_REACH. Расстояние считается от клетки до ближайшей клетки прямоугольника; границы
+     * дисплея считаются один раз, и перебираются только клетки вокруг него. Дисплеи идут по возрастанию id.
+     */
+    private void forEachReachableCell(ReachVisitor visitor) {
+        int radius = (int) Math.floor(PROCESSOR_REACH);
+        int halfSize = displaySize / 2;
+        int tail = (displaySize % 2 == 0) ? halfSize - 1 : halfSize;
+        for (DisplayInfo display : displays) {
+            int minX = display.center.x - halfSize;
+            int maxX = display.center.x + tail;
+            int minY = display.center.y - halfSize;
+            int maxY = display.center.y + tail;
+            for (int x = Math.max(0, minX - radius); x <= Math.min(n - 1, maxX + radius); x++) {
+                int dx = x < minX ? minX - x : (x > maxX ? x - maxX : 0);
+                for (int y = Math.max(0, minY - radius); y <= Math.min(m - 1, maxY + radius); y++) {
+                    int dy = y < minY ? minY - y : (y > maxY ? y - maxY : 0);
+                    if ((double) dx * dx + (double) dy * dy <= PROCESSOR_REACH_SQ) {
+                        visitor.visit(display, x * m + y);
                     }
                 }
             }
-            if (bestOwner != null) {
-                matrix[procPoint.x][procPoint.y].ownerId = bestOwner.id;
-                bestOwner.processorsPlaced++;
-            } else {
-                matrix[procPoint.x][procPoint.y].type = 0;
-                matrix[procPoint.x][procPoint.y].ownerId = -1;
-            }
         }
-        printFinalStats();
     }
 
-    private boolean isWithinProcessorReachOfAnyDisplay(Point p) {
-        for (DisplayInfo display : displays) {
-            if (distanceSqFromPointToRectangle(p, display) <= PROCESSOR_REACH_SQ) {
-                return true;
+    /**
+     * Для каждого места из очереди обхода - досягаемые дисплеи (в том же "отпечатке", что и зона
+     * досягаемости) и расстояния до их центров, затем решение задачи распределения.
+     * @return id дисплея для каждого места или -1.
+     */
+    private int[] assignCandidates(int[] candidates, int candidateCount, int[] required) {
+        int[] candidateAt = new int[n * m];
+        Arrays.fill(candidateAt, -1);
+        for (int k = 0; k < candidateCount; k++) {
+            candidateAt[candidates[k]] = k;
+        }
+        // Два прохода по отпечаткам дисплеев: сначала считаем пары, затем заполняем (формат CSR).
+        int[] reachStart = new int[candidateCount + 1];
+        forEachReachableCell((display, index) -> {
+            if (candidateAt[index] >= 0) {
+                reachStart[candidateAt[index] + 1]++;
             }
+        });
+        for (int k = 0; k < candidateCount; k++) {
+            reachStart[k + 1] += reachStart[k];
         }
-        return false;
+        int[] fill = Arrays.copyOf(reachStart, candidateCount);
+        int[] reachDisplays = new int[reachStart[candidateCount]];
+        double[] reachDistanceSq = new double[reachStart[candidateCount]];
+        forEachReachableCell((display, index) -> {
+            int k = candidateAt[index];
+            if (k >= 0) {
+                double cx = index / m - display.center.x;
+                double cy = index % m - display.center.y;
+                reachDisplays[fill[k]] = display.id;
+                reachDistanceSq[fill[k]++] = cx * cx + cy * cy;
+            }
+        });
+        return ProcessorAssignment.solve(candidateCount, reachStart, reachDisplays, reachDistanceSq, required);
     }
 
-    private double distanceSqFromPointToRectangle(Point p, DisplayInfo display) {
-        int halfSize = displaySize / 2;
-        int minX = display.center.x - halfSize;
-        int maxX = display.center.x + ((displaySize % 2 == 0) ? halfSize - 1 : halfSize);
-        int minY = display.center.y - halfSize;
-        int maxY = display.center.y + ((displaySize % 2 == 0) ? halfSize - 1 : halfSize);
-        double closestX = Math.max(minX, Math.min(p.x, maxX));
-        double closestY = Math.max(minY, Math.min(p.y, maxY));
-        double dx = p.x - closestX;
-        double dy = p.y - closestY;
-        return dx * dx + dy * dy;
-    }
-
-    private void printFinalStats() {
-        System.out.println("--- Финальная статистика ---");
+    public int getTotalRequired() {
         int totalRequired = 0;
-        int totalPlaced = 0;
         for (DisplayInfo display : displays) {
             totalRequired += display.totalProcessorsRequired;
+        }
+        return totalRequired;
+    }
+
+    public int getTotalPlaced() {
+        int totalPlaced = 0;
+        for (DisplayInfo display : displays) {
             totalPlaced += display.processorsPlaced;
         }
-        System.out.println("--- ОБЩИЙ ИТОГ: Размещено " + totalPlaced + " из " + totalRequired + " требуемых процессоров. ---");
+        return totalPlaced;
+    }
+
+    private void printFinalStats(PrintStream log) {
+        log.println("--- Финальная статистика ---");
+        int totalRequired = getTotalRequired();
+        int totalPlaced = getTotalPlaced();
+        log.println("--- ОБЩИЙ ИТОГ: Размещено " + totalPlaced + " из " + totalRequired + " требуемых процессоров. ---");
         for (DisplayInfo display : displays) {
              if (display.getProcessorsNeeded() > 0 && display.processorsPlaced < display.totalProcessorsRequired) {
-                System.out.println("Для дисплея " + display.id + " размещено " + display.processorsPlaced + " из " + display.totalProcessorsRequired + " (не хватило места).");
+                log.println("Для дисплея " + display.id + " размещено " + display.processorsPlaced + " из " + display.totalProcessorsRequired + " (не хватило места).");
             }
         }
     }
 
-    public void createImage(String filePath) {
-        final int CELL_SIZE = 10;
-        BufferedImage image = new BufferedImage(m * CELL_SIZE, n * CELL_SIZE, BufferedImage.TYPE_INT_RGB);
-        Graphics2D g2d = image.createGraphics();
-        g2d.setColor(Color.WHITE);
-        g2d.fillRect(0, 0, m * CELL_SIZE, n * CELL_SIZE);
+    /**
+     * Схема в PNG: отрисовка {@link #renderImage(ForkJoinPool)} и запись выбранным кодировщиком.
+     */
+    public void createImage(String filePath, PngWriter.Encoder encoder, ForkJoinPool pool) {
+        BufferedImage image = renderImage(pool);
+        try {
+            PngWriter.write(image, new File(filePath), encoder);
+            System.out.println("Изображение успешно сохранено в " + filePath);
+        } catch (IOException e) {
+            System.err.println("Ошибка при сохранении изображения: " + e.getMessage());
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Схема размещения: клетка - квадрат CELL_SIZE пикселей с белой сеткой, место процессора - цвет
+     * его дисплея, дисплей - тот же цвет затемненный и с черным контуром толщиной 2 пикселя.
+     * Пиксели пишутся прямо в массив растра TYPE_INT_RGB, полосы строк клеток рисуются параллельно.
+     * Результат попиксельно совпадает с прежней отрисовкой через Graphics2D.
+     */
+    public BufferedImage renderImage(ForkJoinPool pool) {
+        int width = m * CELL_SIZE;
+        int height = n * CELL_SIZE;
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
         final float GOLDEN_RATIO_CONJUGATE = 0.61803398875f;
         float currentHue = 0.1f;
-        Color[] displayColors = new Color[displays.length];
+        int[] processorColors = new int[displays.length];
+        int[] displayColors = new int[displays.length];
         for (int i = 0; i < displays.length; i++) {
-            displayColors[i] = Color.getHSBColor(currentHue, 0.85f, 0.95f);
+            Color color = Color.getHSBColor(currentHue, 0.85f, 0.95f);
+            processorColors[i] = color.getRGB() & WHITE;
+            displayColors[i] = color.darker().darker().getRGB() & WHITE;
             currentHue += GOLDEN_RATIO_CONJUGATE;
             currentHue %= 1.0f;
         }
-        for (int i = 0; i < n; i++) {
+        int rowsPerBand = Math.max(1, (n + pool.getParallelism() * 4 - 1) / (pool.getParallelism() * 4));
+        int bandCount = (n + rowsPerBand - 1) / rowsPerBand;
+        pool.submit(() -> IntStream.range(0, bandCount).parallel()
+            .forEach(band -> renderBand(pixels, processorColors, displayColors,
+                band * rowsPerBand, Math.min(n, (band + 1) * rowsPerBand)))).join();
+        return image;
+    }
+
+    /**
+     * Рисует строки клеток [fromRow, toRow). Контуры дисплеев выходят на пиксель за клетку,
+     * поэтому учитываются и соседние строки клеток, но пишутся только пиксели своей полосы.
+     */
+    private void renderBand(int[] pixels, int[] processorColors, int[] displayColors, int fromRow, int toRow) {
+        int width = m * CELL_SIZE;
+        int[] rowColors = new int[m];
+        // 1. Заливка и белая сетка: верхняя строка и левый столбец каждой клетки - белые.
+        for (int i = fromRow; i < toRow; i++) {
             for (int j = 0; j < m; j++) {
-                int cellType = matrix[i][j].type;
-                int displayId = matrix[i][j].ownerId;
-                Color fillColor = Color.LIGHT_GRAY;
-                if (displayId >= 0) {
-                    if (cellType == 1) {
-                        fillColor = displayColors[displayId];
-                    } else if (cellType == 2) {
-                        fillColor = displayColors[displayId].darker().darker();
+                int index = i * m + j;
+                int owner = owners[index];
+                int color = LIGHT_GRAY;
+                if (owner >= 0) {
+                    if (types[index] == 1) {
+                        color = processorColors[owner];
+                    } else if (types[index] == 2) {
+                        color = displayColors[owner];
                     }
                 }
-                g2d.setColor(fillColor);
-                g2d.fillRect(j * CELL_SIZE, i * CELL_SIZE, CELL_SIZE, CELL_SIZE);
-                g2d.setColor(Color.WHITE);
-                g2d.setStroke(new BasicStroke(1));
-                g2d.drawRect(j * CELL_SIZE, i * CELL_SIZE, CELL_SIZE, CELL_SIZE);
+                rowColors[j] = color;
+            }
+            int rowStart = i * CELL_SIZE * width;
+            Arrays.fill(pixels, rowStart, rowStart + width, WHITE);
+            for (int y = 1; y < CELL_SIZE; y++) {
+                int line = rowStart + y * width;
+                for (int j = 0; j < m; j++) {
+                    int cell = line + j * CELL_SIZE;
+                    pixels[cell] = WHITE;
+                    Arrays.fill(pixels, cell + 1, cell + CELL_SIZE, rowColors[j]);
+                }
             }
         }
-        g2d.setColor(Color.BLACK);
-        g2d.setStroke(new BasicStroke(2));
-        for (int i = 0; i < n; i++) {
+        // 2. Контуры дисплеев по границам с клетками, которые не принадлежат тому же дисплею.
+        int clipTop = fromRow * CELL_SIZE;
+        int clipBottom = toRow * CELL_SIZE;
+        for (int i = Math.max(0, fromRow - 1); i < Math.min(n, toRow + 1); i++) {
             for (int j = 0; j < m; j++) {
-                if (matrix[i][j].type == 2) {
-                    int myDisplayId = matrix[i][j].ownerId;
-                    if (i == 0 || matrix[i - 1][j].ownerId != myDisplayId || matrix[i - 1][j].type != 2) g2d.drawLine(j * CELL_SIZE, i * CELL_SIZE, (j + 1) * CELL_SIZE, i * CELL_SIZE);
-                    if (i == n - 1 || matrix[i + 1][j].ownerId != myDisplayId || matrix[i + 1][j].type != 2) g2d.drawLine(j * CELL_SIZE, (i + 1) * CELL_SIZE, (j + 1) * CELL_SIZE, (i + 1) * CELL_SIZE);
-                    if (j == 0 || matrix[i][j - 1].ownerId != myDisplayId || matrix[i][j - 1].type != 2) g2d.drawLine(j * CELL_SIZE, i * CELL_SIZE, j * CELL_SIZE, (i + 1) * CELL_SIZE);
-                    if (j == m - 1 || matrix[i][j + 1].ownerId != myDisplayId || matrix[i][j + 1].type != 2) g2d.drawLine((j + 1) * CELL_SIZE, i * CELL_SIZE, (j + 1) * CELL_SIZE, (i + 1) * CELL_SIZE);
+                if (getType(i, j) != 2) {
+                    continue;
                 }
+                int id = getOwner(i, j);
+                int left = j * CELL_SIZE;
+                int top = i * CELL_SIZE;
+                if (i == 0 || getOwner(i - 1, j) != id || getType(i - 1, j) != 2) fillBorder(pixels, left - 1, top - 1, left + CELL_SIZE, top, clipTop, clipBottom);
+                if (i == n - 1 || getOwner(i + 1, j) != id || getType(i + 1, j) != 2) fillBorder(pixels, left - 1, top + CELL_SIZE - 1, left + CELL_SIZE, top + CELL_SIZE, clipTop, clipBottom);
+                if (j == 0 || getOwner(i, j - 1) != id || getType(i, j - 1) != 2) fillBorder(pixels, left - 1, top - 1, left, top + CELL_SIZE, clipTop, clipBottom);
+                if (j == m - 1 || getOwner(i, j + 1) != id || getType(i, j + 1) != 2) fillBorder(pixels, left + CELL_SIZE - 1, top - 1, left + CELL_SIZE, top + CELL_SIZE, clipTop, clipBottom);
             }
         }
-        g2d.dispose();
-        try {
-            ImageIO.write(image, "png", new File(filePath));
-            System.out.println("Изображение успешно сохранено в " + filePath);
-        } catch (IOException e) {
-            System.err.println("Ошибка при сохранении изображения: " + e.getMessage());
-            e.printStackTrace();
+    }
+
+    /**
+     * Закрашивает черным пиксели [x0, x1] x [y0, y1] (включительно) - линию толщиной 2 с квадратными
+     * концами, как ее рисовал BasicStroke(2). Строки обрезаются по полосе [clipTop, clipBottom).
+     */
+    private void fillBorder(int[] pixels, int x0, int y0, int x1, int y1, int clipTop, int clipBottom) {
+        int width = m * CELL_SIZE;
+        int fromX = Math.max(0, x0);
+        int toX = Math.min(width - 1, x1);
+        for (int y = Math.max(clipTop, y0); y <= Math.min(clipBottom - 1, y1); y++) {
+            Arrays.fill(pixels, y * width + fromX, y * width + toX + 1, BLACK);
         }
     }
 }
\ No newline at end of file
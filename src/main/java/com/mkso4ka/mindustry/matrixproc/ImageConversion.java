@@ -0,0 +1,468 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import javax.imageio.ImageIO;
+
+/**
+ * Конвертация одного изображения (или анимации) от чтения файла до схемы размещения - бывшее тело Main.main.
+ * <p>
+ * Чтение исходного файла и запись PNG выполняются в вызывающем потоке (в пакетном режиме это
+ * поток ввода-вывода), а счетные этапы - масштабирование, палитра, фрагменты (вместе с их внутренним
+ * параллелизмом), размещение и отрисовка схемы - в общем пуле cpuPool. Поэтому convert нельзя
+ * вызывать из потока самого cpuPool.
+ */
+class ImageConversion {
+    private ImageConversion() {}
+
+    /**
+     * Итог конвертации для сводки пакетного режима.
+     */
+    static class Result {
+        final int requiredProcessors;
+        final int placedProcessors;
+        final long millis;
+
+        Result(int requiredProcessors, int placedProcessors, long millis) {
+            this.requiredProcessors = requiredProcessors;
+            this.placedProcessors = placedProcessors;
+            this.millis = millis;
+        }
+    }
+
+    /**
+     * @param cpuPool Пул fork-join для всех счетных этапов (размер - число ядер или --threads).
+     * @param threads Размер cpuPool (для сообщений и размера пула отладочных изображений).
+     * @param cache Общий кэш разбиений или null.
+     * @param log Куда писать ход конвертации.
+     */
+    public static Result convert(ConversionOptions options, ForkJoinPool cpuPool, int threads, TileCache cache,
+                                 PrintStream log) throws IOException, InterruptedException, ExecutionException {
+        long started = System.nanoTime();
+        int displaysX = options.displaysX;
+        int displaysY = options.displaysY;
+        int displaySize = options.displaySize;
+        int commandBudget = options.commandBudget;
+        // Замеры этапов: события JFR (com.mkso4ka.matrixproc.Stage) и JSON-отчет о запуске.
+        RunReport report = new RunReport();
+
+        // --- 1. Очистка и создание папок ---
+        File outputDir = new File(options.outputDir, "output_images");
+        File processorCodeDir = new File(options.outputDir, "outputProcessors");
+        cleanAndCreateDirectory(outputDir);
+        cleanAndCreateDirectory(processorCodeDir);
+        log.println("1. Папки для вывода очищены: " + options.outputDir.getPath());
+        // Отладочные PNG пишутся в фоне; очередь ограничена, при переполнении пишет сам поток фрагмента.
+        DebugOutput debug = new DebugOutput(options.debugLevel, outputDir, PngWriter.Encoder.FAST, Math.max(1, threads / 2), threads * 4);
+
+        // 2. Определяем параметры
+        int displayPixelSize = getDisplayPixelSize(displaySize, log);
+        log.println("2. Параметры: Видимая область=" + displayPixelSize + "px, Внутренняя рамка=" + Main.BORDER_SIZE + "px.");
+
+        // 3. Рассчитываем итоговый размер и создаем мастер-изображение
+        int totalWidth = Main.wallSize(displaysX, displayPixelSize);
+        int totalHeight = Main.wallSize(displaysY, displayPixelSize);
+        BufferedImage scaledMasterImage;
+        SliceSource slices;
+        RegionDecoder regionDecoder = null;
+        AnimationFrames animation = null;
+        if (options.animation) {
+            try (RunReport.Timer timer = report.stage("read", -1)) {
+                animation = AnimationFrames.read(options.source);
+            }
+            scaledMasterImage = null;
+            slices = null;
+            log.println("3. Анимация: " + animation.frames.size() + " кадров, задержка " + animation.delaySeconds
+                + " с. Кадры будут масштабированы до " + totalWidth + "x" + totalHeight + ".");
+        } else {
+            RegionDecoder decoder = RegionDecoder.open(options.source, totalWidth, totalHeight, options.filter, cpuPool);
+            if (options.regionDecode || decoder.sourcePixels() >= RegionDecoder.AUTO_MIN_PIXELS) {
+                // Огромный исходник целиком в память не читается: каждый фрагмент декодируется из своей области.
+                // Стена целиком не собирается и в отладке: scaled_master_image.png не пишется, фрагменты - в debug_tile_raw_slice_N.png.
+                log.println("3. Исходник " + decoder.sourceWidth + "x" + decoder.sourceHeight
+                    + " читается по областям фрагментов с масштабированием до " + totalWidth + "x" + totalHeight
+                    + " (scaled_master_image.png не пишется).");
+                scaledMasterImage = null;
+                slices = decoder::readScaled;
+                regionDecoder = decoder;
+            } else {
+                scaledMasterImage = readScaled(options.source, totalWidth, totalHeight, options.filter, cpuPool, report, log);
+                slices = bounds -> scaledMasterImage.getSubimage(bounds.x, bounds.y, bounds.width, bounds.height);
+                debug.write(DebugOutput.Level.SUMMARY, "scaled_master_image.png", () -> scaledMasterImage); // ДЕБАГ 1
+            }
+        }
+
+        // 3.1. Общая палитра для всех фрагментов стены (если включено квантование). При чтении по областям
+        //      она строится по уменьшенной копии стены: полная стена - ровно то, что этот режим не держит в памяти.
+        PaletteQuantizer sharedQuantizer = null;
+        if (options.paletteSize > 0 && options.sharedPalette && slices != null) {
+            try (RunReport.Timer timer = report.stage("palette", -1)) {
+                BufferedImage wallImage = scaledMasterImage != null ? scaledMasterImage
+                    : regionDecoder.readPreview(RegionDecoder.PREVIEW_PIXELS);
+                timer.pixels((long) wallImage.getWidth() * wallImage.getHeight());
+                sharedQuantizer = PaletteQuantizer.build(Pixmap.fromBufferedImage(wallImage).getPixels(), options.paletteSize, cpuPool);
+                timer.colors(sharedQuantizer.getPalette().length);
+            }
+            log.println("3.1. Построена общая палитра: " + sharedQuantizer.getPalette().length + " цветов.");
+        }
+        final PaletteQuantizer quantizer = sharedQuantizer;
+        final int tilePaletteSize = options.sharedPalette ? 0 : options.paletteSize;
+
+        // 4. Создаем чертеж
+        DisplayMatrix displayMatrix = new DisplayMatrix();
+        MatrixBlueprint blueprint = displayMatrix.placeDisplaysXxY(
+            displaysX, displaysY, displaySize, DisplayProcessorMatrixFinal.PROCESSOR_REACH
+        );
+        log.println("4. Создан чертеж для " + blueprint.displayCoordinates.length + " дисплеев.");
+
+        // 5. Анализируем фрагменты. Каждый дисплей обрабатывается независимо, поэтому
+        //    все фрагменты запускаются параллельно, а результаты собираются по индексу дисплея.
+        log.println("5. Анализ и нарезка фрагментов (потоков: " + threads + ")...");
+        int[] processorsPerDisplay = new int[blueprint.displayCoordinates.length];
+        try (RunReport.Timer timer = report.stage(animation != null ? "animation" : "analysis", -1)) {
+            if (animation != null) {
+                // Анимация: кадры сравниваются попарно, код каждого дисплея переключается по номеру кадра.
+                processorsPerDisplay = AnimationConverter.convert(animation, displaysX, displaysY, displayPixelSize,
+                    options.filter, options.flushLimit, cpuPool, processorCodeDir.toPath(), log);
+                log.println("   Процессор-дирижер: animation_controller.txt (банк памяти bank1 подключается ко всем процессорам).");
+            } else {
+                List<Callable<TileResult>> tasks = new ArrayList<>();
+                for (int i = 0; i < displaysY; i++) {
+                    for (int j = 0; j < displaysX; j++) {
+                        final int row = i;
+                        final int column = j;
+                        tasks.add(() -> processTile(slices, row, column, displaysX, displaysY, displayPixelSize,
+                            quantizer, tilePaletteSize, commandBudget, options.optimizeMillis, options.layered, options.flushLimit, cache, debug, report, processorCodeDir, cpuPool));
+                    }
+                }
+                // invokeAll возвращает результаты в порядке задач, поэтому вывод и итог не зависят от потоков.
+                int cacheHits = 0;
+                for (Future<TileResult> future : cpuPool.invokeAll(tasks)) {
+                    TileResult result = future.get();
+                    processorsPerDisplay[result.displayIndex] = result.processorCount;
+                    if (result.fromCache) {
+                        cacheHits++;
+                    }
+                    log.println(result.summary);
+                }
+                if (cache != null) {
+                    log.println("   Кэш фрагментов: попаданий " + cacheHits + ", промахов " + (tasks.size() - cacheHits) + ".");
+                }
+            }
+        }
+
+        log.println("--- ИТОГ АНАЛИЗА ---");
+        log.println("Код для процессоров сохранен в папку: " + processorCodeDir.getPath());
+        log.println("Рассчитанные потребности: " + Arrays.toString(processorsPerDisplay));
+        log.println("----------------------");
+
+        // 6. Запускаем физическое размещение
+        final int[] required = processorsPerDisplay;
+        DisplayProcessorMatrixFinal displayProcessorMatrix;
+        try (RunReport.Timer timer = report.stage("place", -1)) {
+            displayProcessorMatrix = cpuPool.submit(() -> {
+                DisplayProcessorMatrixFinal matrix = new DisplayProcessorMatrixFinal(
+                    blueprint.n, blueprint.m, required, blueprint.displayCoordinates, displaySize
+                );
+                matrix.placeProcessors(log);
+                return matrix;
+            }).get();
+        }
+
+        // 7. Сохраняем результат
+        try (RunReport.Timer timer = report.stage("schematic", -1)) {
+            File schematic = new File(outputDir, "final_schematic.png");
+            PngWriter.write(displayProcessorMatrix.renderImage(cpuPool), schematic, options.schematicEncoder);
+            log.println("Изображение успешно сохранено в " + schematic.getPath());
+        }
+
+        // 8. Дожидаемся фоновой записи отладочных изображений
+        try (RunReport.Timer timer = report.stage("debug", -1)) {
+            debug.close();
+        }
+        if (debug.isEnabled(DebugOutput.Level.SUMMARY)) {
+            log.println("8. Отладочные изображения: записано " + debug.getWritten()
+                + (debug.getFailed() > 0 ? ", ошибок " + debug.getFailed() : "") + ".");
+        }
+
+        // 9. Машиночитаемый отчет о запуске
+        Map<String, Object> parameters = new LinkedHashMap<>();
+        parameters.put("source", options.source.getPath());
+        parameters.put("animation", options.animation);
+        parameters.put("regionDecode", regionDecoder != null);
+        parameters.put("filter", options.filter);
+        parameters.put("displaysX", displaysX);
+        parameters.put("displaysY", displaysY);
+        parameters.put("displaySize", displaySize);
+        parameters.put("threads", threads);
+        parameters.put("paletteSize", options.paletteSize);
+        parameters.put("sharedPalette", options.sharedPalette);
+        parameters.put("commandBudget", commandBudget);
+        parameters.put("optimizeMillis", options.optimizeMillis);
+        parameters.put("layered", options.layered);
+        parameters.put("commandsPerProcessor", Main.COMMANDS_PER_PROCESSOR);
+        parameters.put("flushLimit", options.flushLimit);
+        parameters.put("debugLevel", options.debugLevel);
+        File reportFile = new File(outputDir, "run_report.json");
+        report.write(reportFile.toPath(), parameters);
+        log.println("9. Отчет о запуске: " + reportFile.getPath());
+
+        return new Result(displayProcessorMatrix.getTotalRequired(), displayProcessorMatrix.getTotalPlaced(),
+            (System.nanoTime() - started) / 1_000_000);
+    }
+
+    /**
+     * Фрагмент масштабированной стены по его области (см. Main.sliceBounds).
+     */
+    interface SliceSource {
+        BufferedImage slice(Rectangle bounds) throws IOException;
+    }
+
+    /**
+     * Путь для обычных исходников: файл читается целиком и масштабируется полосами в пуле pool.
+     */
+    private static BufferedImage readScaled(File source, int totalWidth, int totalHeight, Resampler.Filter filter,
+                                            ForkJoinPool pool, RunReport report, PrintStream log) throws IOException {
+        log.println("3. Масштабирование исходного изображения до " + totalWidth + "x" + totalHeight + ".");
+        BufferedImage masterImage;
+        try (RunReport.Timer timer = report.stage("read", -1)) {
+            masterImage = ImageIO.read(source);
+            if (masterImage == null) {
+                throw new IOException("Не удалось прочитать изображение: " + source);
+            }
+            timer.pixels((long) masterImage.getWidth() * masterImage.getHeight());
+        }
+        try (RunReport.Timer timer = report.stage("resize", -1).pixels((long) totalWidth * totalHeight)) {
+            return Resampler.resize(masterImage, totalWidth, totalHeight, filter, pool);
+        }
+    }
+
+    /**
+     * Полная обработка одного фрагмента: вырезание, анализ, генерация команд, отладочные изображения
+     * и файлы для процессоров. Выполняется в пуле потоков, поэтому не трогает общее состояние.
+     * @param quantizer Общая палитра стены или null.
+     * @param tilePaletteSize Размер собственной палитры фрагмента (0 - без квантования по фрагменту).
+     * @param commandBudget Бюджет команд для режима с потерями (0 - без потерь).
+     * @param optimizeMillis Время на улучшение разбиения (0 - только жадное разбиение).
+     * @param layered Пробовать фон draw clear с передним планом поверх него (LayeredDecomposer).
+     * @param flushLimit Сколько команд рисования записывается между двумя drawflush.
+     * @param cache Кэш разбиений или null.
+     * @param debug Куда ставить в очередь отладочные изображения фрагмента.
+     * @param report Замеры: фрагмент целиком и его этапы (импорт, разбиение, генерация команд с записью).
+     * @param pool Пул, в котором выполняется фрагмент: в него же дробятся квантование, разбиение и оптимизатор.
+     */
+    private static TileResult processTile(SliceSource slices, int i, int j, int displaysX, int displaysY,
+                                          int displayPixelSize, PaletteQuantizer quantizer, int tilePaletteSize,
+                                          int commandBudget, int optimizeMillis, boolean layered, int flushLimit, TileCache cache, DebugOutput debug, RunReport report,
+                                          File processorCodeDir, ForkJoinPool pool) throws IOException {
+        int displayIndex = j * displaysY + i;
+
+        try (RunReport.Timer tileTimer = report.stage(RunReport.TILE_STAGE, displayIndex)) {
+            // 5.1. Рассчитываем размер и смещение для вырезания
+            Rectangle bounds = Main.sliceBounds(i, j, displaysX, displaysY, displayPixelSize);
+            int sliceWidth = bounds.width;
+            int sliceHeight = bounds.height;
+
+            // 5.2. Вырезаем фрагмент
+            BufferedImage finalSlice;
+            try (RunReport.Timer timer = report.stage("slice", displayIndex).pixels((long) sliceWidth * sliceHeight)) {
+                finalSlice = slices.slice(bounds);
+            }
+            debug.write(DebugOutput.Level.FULL, "debug_tile_raw_slice_" + displayIndex + ".png", () -> finalSlice); // ДЕБАГ 2
+
+            // 5.3. Анализируем фрагмент
+            Pixmap pixmap;
+            try (RunReport.Timer timer = report.stage("import", displayIndex).pixels((long) sliceWidth * sliceHeight)) {
+                pixmap = Pixmap.fromBufferedImage(finalSlice);
+                if (quantizer != null) {
+                    quantizer.apply(pixmap);
+                } else if (tilePaletteSize > 0) {
+                    PaletteQuantizer.build(pixmap.getPixels(), tilePaletteSize, pool).apply(pixmap);
+                }
+            }
+
+            // --- КЛЮЧЕВОЕ ИСПРАВЛЕНИЕ: Определяем смещение для коррекции координат ---
+            int offsetX = (j > 0) ? Main.BORDER_SIZE : 0;
+            int offsetY = (i > 0) ? Main.BORDER_SIZE : 0;
+
+            // Неизмененный фрагмент берем из кэша, не разбивая заново.
+            Map<Integer, List<Rect>> rects = null;
+            boolean fromCache;
+            try (RunReport.Timer timer = report.stage("decompose", displayIndex).pixels((long) sliceWidth * sliceHeight)) {
+                byte[] cacheKey = null;
+                if (cache != null) {
+                    String variant = commandBudget > 0 ? "budget=" + commandBudget : "exact";
+                    if (optimizeMillis > 0) {
+                        variant += ",optimize=" + optimizeMillis;
+                    }
+                    if (layered) {
+                        variant += ",layered";
+                    }
+                    if (commandBudget > 0 || layered) {
+                        // Бюджет и выбор фона считаются по записанному коду, а он зависит от частоты drawflush.
+                        variant += ",flush=" + flushLimit;
+                    }
+                    cacheKey = TileCache.key(pixmap, offsetX, offsetY, variant);
+                    rects = cache.get(cacheKey);
+                }
+                fromCache = rects != null;
+                if (!fromCache) {
+                    if (commandBudget > 0) {
+                        rects = CommandBudgetReducer.reduce(pixmap, commandBudget, Main.COMMANDS_PER_PROCESSOR, flushLimit, pool);
+                    } else {
+                        ImageProcessor processor = new ImageProcessor(pixmap);
+                        rects = processor.groupOptimal(pool);
+                    }
+                    // Послойный режим: фон заливается draw clear, разбивается (и улучшается) только передний план.
+                    LayeredDecomposer layers = layered ? LayeredDecomposer.choose(pixmap, rects, Main.COMMANDS_PER_PROCESSOR, flushLimit, pool) : null;
+                    if (layers != null) {
+                        rects = layers.foreground;
+                    }
+                    if (optimizeMillis > 0) {
+                        // Оптимизированное разбиение тоже кладется в кэш: время на поиск тратится один раз.
+                        try (RunReport.Timer optimizeTimer = report.stage("optimize", displayIndex)) {
+                            rects = RectangleOptimizer.optimize(pixmap, rects, optimizeMillis, pool);
+                            optimizeTimer.rects(countRects(rects));
+                        }
+                    }
+                    if (layers != null) {
+                        rects = layers.withBackground(rects, new Rect(offsetX, offsetY, displayPixelSize, displayPixelSize));
+                    }
+                    if (cache != null) {
+                        cache.put(cacheKey, rects);
+                    }
+                }
+                timer.colors(rects.size()).rects(countRects(rects));
+            }
+
+            // 5.4. Генерируем команды и сразу записываем код для процессоров
+            int commandCount;
+            int processorCount;
+            int[] fill;
+            TickSimulator.Result ticks;
+            try (RunReport.Timer timer = report.stage("emit", displayIndex);
+                 CommandEmitter emitter = new CommandEmitter(processorCodeDir.toPath(), displayIndex, Main.COMMANDS_PER_PROCESSOR, flushLimit)) {
+                emitter.emitRects(rects, displayPixelSize, offsetX, offsetY);
+                commandCount = emitter.getCommandCount();
+                processorCount = emitter.getProcessorCount();
+                fill = emitter.getProcessorFill();
+                ticks = emitter.simulate(TickSimulator.MICRO_PROCESSOR_IPT);
+                timer.commands(commandCount);
+            }
+            tileTimer.pixels((long) sliceWidth * sliceHeight).colors(rects.size()).rects(countRects(rects)).commands(commandCount)
+                .processors(fill).ticks(ticks);
+            String summary = "   Дисплей " + displayIndex + " (X:" + j + ",Y:" + i + "): "
+                + "Срез " + sliceWidth + "x" + sliceHeight + ". "
+                + "Смещение (" + offsetX + "," + offsetY + "). "
+                + commandCount + " команд -> " + processorCount + " проц. (заполнение " + fillPercent(fill) + "). "
+                + "Прорисовка: " + ticks.ticksToComplete + " тиков, половина за " + ticks.ticksToHalf
+                + (ticks.droppedCommands > 0 ? ", буфер отбросит " + ticks.droppedCommands + " команд" : "") + "."
+                + (fromCache ? " (из кэша)" : "");
+
+            // --- Секция расширенного дебага (рисуется в фоне) ---
+            final Map<Integer, List<Rect>> tileRects = rects;
+            debug.write(DebugOutput.Level.FULL, "debug_tile_with_rects_" + displayIndex + ".png",
+                () -> drawRectsOverlay(finalSlice, tileRects)); // ДЕБАГ 3
+            debug.write(DebugOutput.Level.FULL, "debug_final_commands_preview_" + displayIndex + ".png",
+                () -> drawCommandPreview(tileRects, displayPixelSize, offsetX, offsetY)); // ДЕБАГ 4
+
+            return new TileResult(displayIndex, processorCount, summary, fromCache);
+        }
+    }
+
+    /**
+     * Заполнение процессоров в процентах от Main.COMMANDS_PER_PROCESSOR, например "100%, 100%, 35%".
+     */
+    private static String fillPercent(int[] fill) {
+        StringBuilder out = new StringBuilder();
+        for (int commands : fill) {
+            out.append(out.length() > 0 ? ", " : "").append(commands * 100 / Main.COMMANDS_PER_PROCESSOR).append('%');
+        }
+        return out.toString();
+    }
+
+    private static int countRects(Map<Integer, List<Rect>> rects) {
+        int count = 0;
+        for (List<Rect> list : rects.values()) {
+            count += list.size();
+        }
+        return count;
+    }
+
+    /**
+     * Отладка: найденные прямоугольники поверх "сырого" фрагмента.
+     */
+    private static BufferedImage drawRectsOverlay(BufferedImage finalSlice, Map<Integer, List<Rect>> rects) {
+        BufferedImage sliceWithRects = new BufferedImage(finalSlice.getWidth(), finalSlice.getHeight(), BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g1 = sliceWithRects.createGraphics();
+        g1.drawImage(finalSlice, 0, 0, null);
+        for (List<Rect> rectList : rects.values()) {
+            for (Rect rect : rectList) {
+                g1.setColor(Color.RED);
+                g1.drawRect(rect.x, rect.y, rect.w - 1, rect.h - 1);
+            }
+        }
+        g1.dispose();
+        return sliceWithRects;
+    }
+
+    /**
+     * Отладка: симуляция отрисовки на дисплее с исправленными координатами.
+     */
+    private static BufferedImage drawCommandPreview(Map<Integer, List<Rect>> rects, int displayPixelSize, int offsetX, int offsetY) {
+        BufferedImage commandPreview = new BufferedImage(displayPixelSize, displayPixelSize, BufferedImage.TYPE_INT_ARGB);
+        Graphics2D g2 = commandPreview.createGraphics();
+        g2.setColor(Color.BLACK); // Фон для наглядности
+        g2.fillRect(0, 0, displayPixelSize, displayPixelSize);
+        for (Map.Entry<Integer, List<Rect>> entry : rects.entrySet()) {
+            g2.setColor(new Color(entry.getKey(), true));
+            for (Rect rect : entry.getValue()) {
+                int correctedX = rect.x - offsetX;
+                int correctedY = rect.y - offsetY;
+                // Проверка, чтобы не рисовать за пределами видимой области
+                if (correctedX >= 0 && correctedY >= 0 && correctedX + rect.w <= displayPixelSize && correctedY + rect.h <= displayPixelSize) {
+                    g2.fillRect(correctedX, correctedY, rect.w, rect.h);
+                }
+            }
+        }
+        g2.dispose();
+        return commandPreview;
+    }
+
+    private static void cleanAndCreateDirectory(File directory) throws IOException {
+        if (directory.exists()) {
+            File[] files = directory.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+        } else if (!directory.mkdirs()) {
+            throw new IOException("Не удалось создать папку " + directory);
+        }
+    }
+
+    private static int getDisplayPixelSize(int displayBlockSize, PrintStream log) {
+        switch (displayBlockSize) {
+            case 3: return 80;
+            case 6: return 176;
+            default:
+                log.println("Внимание: Неизвестный размер дисплея " + displayBlockSize + ". Используется размер по умолчанию 80.");
+                return 80;
+        }
+    }
+}
@@ -4,131 +4,517 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import javax.imageio.ImageIO;
 
 /**
  * Основной класс, реализующий оптимальный алгоритм разбиения изображения на прямоугольники.
  */
 public class ImageProcessor {
+    // Области меньше этого (по площади ограничивающих прямоугольников) не делятся между потоками.
+    private static final int COMPONENT_BATCH_PIXELS = 4096;
+
     private final Pixmap pixmap;
-    private final boolean[][] used;
+    // Прямой доступ к пикселям: строка y начинается с индекса pixelBase + y * stride.
+    private final int[] pixels;
+    private final int stride;
+    // Обрабатываемое окно изображения: все координаты внутри класса отсчитываются от (originX, originY).
+    private final int originX;
+    private final int originY;
+    private final int pixelBase;
     private final int width;
     private final int height;
 
+    // Битовые маски по строкам: строка y занимает слова [y * wordsPerRow, (y + 1) * wordsPerRow),
+    // бит x лежит в слове x / 64 на позиции x % 64.
+    private final int wordsPerRow;
+    // Занятые пиксели.
+    private final long[] used;
+    // Бит x установлен, если пиксель x совпадает по цвету с соседом x + 1 в той же строке.
+    // Вместе с проверкой первого пикселя это дает маску "того же цвета, что и затравка".
+    private final long[] sameAsNext;
+
+    // Кэш кандидатов: для каждого пикселя (индекс y * width + x) хранится лучший прямоугольник,
+    // который можно начать в этой точке, и окно, которое было просмотрено при его поиске.
+    private final int[] candidateW;
+    private final int[] candidateH;
+    private final int[] windowRight;
+    private final int[] windowBottom;
+    // Кандидат помечен, если после его расчета был занят пиксель из его окна.
+    // Площадь в куче для него - верхняя оценка, а пересчет откладывается до момента, когда он окажется на вершине.
+    private final boolean[] dirty;
+    // Рабочий массив для invalidateCandidates: колонки, в которых еще может стоять затронутый кандидат.
+    private final boolean[] alive;
+    private final CandidateHeap heap = new CandidateHeap();
+
     /**
      * Конструктор. Класс теперь работает как объект, хранящий свое состояние.
      * @param pixmap Изображение для обработки.
      */
     public ImageProcessor(Pixmap pixmap) {
+        this(pixmap, 0, 0, pixmap.getWidth(), pixmap.getHeight());
+    }
+
+    /**
+     * Процессор для окна изображения. Маски и кэш кандидатов создаются только под размер окна.
+     */
+    private ImageProcessor(Pixmap pixmap, int originX, int originY, int width, int height) {
         this.pixmap = pixmap;
-        this.width = pixmap.getWidth();
-        this.height = pixmap.getHeight();
-        // Используем boolean массив вместо медленной и опасной статической карты
-        this.used = new boolean[width][height];
+        this.originX = originX;
+        this.originY = originY;
+        this.width = width;
+        this.height = height;
+        this.pixels = pixmap.getPixels();
+        this.stride = pixmap.getStride();
+        this.pixelBase = originY * stride + originX;
+        this.wordsPerRow = (width + 63) >>> 6;
+        this.used = new long[wordsPerRow * height];
+        this.sameAsNext = new long[wordsPerRow * height];
+        for (int y = 0; y < height; y++) {
+            int pixelRow = pixelBase + y * stride;
+            int maskRow = y * wordsPerRow;
+            for (int x = 0; x + 1 < width; x++) {
+                if (pixels[pixelRow + x] == pixels[pixelRow + x + 1]) {
+                    sameAsNext[maskRow + (x >>> 6)] |= 1L << x;
+                }
+            }
+        }
+        this.candidateW = new int[width * height];
+        this.candidateH = new int[width * height];
+        this.windowRight = new int[width * height];
+        this.windowBottom = new int[width * height];
+        this.dirty = new boolean[width * height];
+        this.alive = new boolean[width];
     }
 
     /**
      * Основной метод, реализующий оптимальный алгоритм "Поиск и удаление максимального прямоугольника".
+     * <p>
+     * Результат совпадает с полным перебором (самый большой прямоугольник, при равенстве - первый
+     * в порядке строк), но кандидаты для каждого пикселя считаются один раз и хранятся в очереди
+     * с приоритетом. После фиксации прямоугольника помечаются только те кандидаты, чье окно поиска
+     * пересекается с ним. Площадь кандидата может только уменьшаться, поэтому помеченный кандидат
+     * пересчитывается лениво - когда он окажется на вершине очереди.
      * @return Карта, где ключ - цвет пикселя (Integer), а значение - список найденных прямоугольников.
      */
     public Map<Integer, List<Rect>> groupOptimal() {
         // Используем Integer для цвета вместо строки - это быстрее и правильнее.
         Map<Integer, List<Rect>> out = new HashMap<>();
+        for (Rect rect : findRects()) {
+            out.computeIfAbsent(pixmap.get(rect.x, rect.y), k -> new ArrayList<>()).add(rect);
+        }
+        return out;
+    }
 
-        while (true) {
-            Rect bestRect = null;
-            int bestRectArea = -1;
-            int bestRectColor = 0;
-
-            // 1. Проходим по КАЖДОМУ пикселю, чтобы найти лучший следующий ход.
-            for (int y = 0; y < height; y++) {
-                for (int x = 0; x < width; x++) {
-                    // Если пиксель еще не использован
-                    if (!used[x][y]) {
-                        int currentColor = pixmap.get(x, y);
-                        // 2. Находим самый большой прямоугольник, который можно начать в этой точке.
-                        Rect candidateRect = findLargestRectangleAt(x, y, currentColor);
-                        int candidateArea = candidateRect.w * candidateRect.h;
-
-                        // 3. Если этот кандидат лучше текущего лучшего (по площади), запоминаем его.
-                        if (candidateArea > bestRectArea) {
-                            bestRectArea = candidateArea;
-                            bestRect = candidateRect;
-                            bestRectColor = currentColor;
-                        }
-                    }
+    /**
+     * То же разбиение, что и {@link #groupOptimal()}, но с предварительной разметкой одноцветных
+     * связных областей. Каждая область разбивается отдельно, в окне своего ограничивающего
+     * прямоугольника (пиксели чужих областей в нем сразу помечаются занятыми), а области
+     * распределяются по потокам пула с перехватом работы.
+     * <p>
+     * Жадный алгоритм выбирает прямоугольники в порядке убывания площади, при равенстве - по порядку
+     * строк, и выбор в одной области не влияет на другие. Поэтому после сортировки по этому же ключу
+     * результат совпадает с {@link #groupOptimal()} вплоть до порядка прямоугольников и цветов.
+     * @param pool Пул потоков, например {@link ForkJoinPool#commonPool()}.
+     */
+    public Map<Integer, List<Rect>> groupOptimal(ForkJoinPool pool) {
+        return groupOptimal(pool, null);
+    }
+
+    /**
+     * Разбиение только пикселей маски (например, изменившихся с прошлого кадра анимации).
+     * Пиксели вне маски не покрываются и не соединяют области между собой.
+     * @param mask Маска с индексом y * width + x или null, чтобы разбить все изображение.
+     */
+    public Map<Integer, List<Rect>> groupOptimal(ForkJoinPool pool, boolean[] mask) {
+        ConnectedComponents components = ConnectedComponents.label(pixmap, mask);
+        List<List<Rect>> perComponent = new ArrayList<>(components.count);
+        for (int i = 0; i < components.count; i++) {
+            perComponent.add(null);
+        }
+        long[] boundsPrefix = new long[components.count + 1];
+        for (int i = 0; i < components.count; i++) {
+            boundsPrefix[i + 1] = boundsPrefix[i] + (long) components.boundsWidth(i) * components.boundsHeight(i);
+        }
+        pool.invoke(new ComponentTask(pixmap, components, boundsPrefix, perComponent, 0, components.count));
+
+        List<Rect> all = new ArrayList<>();
+        perComponent.forEach(all::addAll);
+        all.sort((a, b) -> a.w * a.h != b.w * b.h
+            ? Integer.compare(b.w * b.h, a.w * a.h)
+            : a.y != b.y ? Integer.compare(a.y, b.y) : Integer.compare(a.x, b.x));
+
+        Map<Integer, List<Rect>> out = new HashMap<>();
+        for (Rect rect : all) {
+            out.computeIfAbsent(pixmap.get(rect.x, rect.y), k -> new ArrayList<>()).add(rect);
+        }
+        return out;
+    }
+
+    /**
+     * Разбивает одну связную область. Область-точка и область-прямоугольник не требуют поиска.
+     */
+    private static List<Rect> decomposeComponent(Pixmap pixmap, ConnectedComponents components, int label) {
+        int x = components.minX[label];
+        int y = components.minY[label];
+        int w = components.boundsWidth(label);
+        int h = components.boundsHeight(label);
+        if (components.size[label] == w * h) {
+            List<Rect> single = new ArrayList<>(1);
+            single.add(new Rect(x, y, w, h));
+            return single;
+        }
+        ImageProcessor local = new ImageProcessor(pixmap, x, y, w, h);
+        local.markOutside(components.labels, pixmap.getWidth(), label);
+        return local.findRects();
+    }
+
+    /**
+     * Помечает занятыми все пиксели окна, которые не принадлежат области label.
+     */
+    private void markOutside(int[] labels, int labelsWidth, int label) {
+        for (int y = 0; y < height; y++) {
+            int labelRow = (originY + y) * labelsWidth + originX;
+            int maskRow = y * wordsPerRow;
+            for (int x = 0; x < width; x++) {
+                if (labels[labelRow + x] != label) {
+                    used[maskRow + (x >>> 6)] |= 1L << x;
                 }
             }
+        }
+    }
 
-            // 4. Если лучший прямоугольник не найден, значит, все пиксели обработаны. Выходим.
-            if (bestRect == null) {
-                break;
+    /**
+     * Задача для пула: делит диапазон областей пополам, пока суммарная площадь их окон
+     * не станет достаточно маленькой, после чего разбивает области последовательно.
+     * ForkJoinTask сериализуем, но задача живет только внутри пула и никогда не сериализуется.
+     */
+    @SuppressWarnings("serial")
+    private static class ComponentTask extends RecursiveAction {
+        private final Pixmap pixmap;
+        private final ConnectedComponents components;
+        private final long[] boundsPrefix;
+        private final List<List<Rect>> results;
+        private final int from;
+        private final int to;
+
+        ComponentTask(Pixmap pixmap, ConnectedComponents components, long[] boundsPrefix, List<List<Rect>> results, int from, int to) {
+            this.pixmap = pixmap;
+            this.components = components;
+            this.boundsPrefix = boundsPrefix;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= 1 || boundsPrefix[to] - boundsPrefix[from] <= COMPONENT_BATCH_PIXELS) {
+                for (int label = from; label < to; label++) {
+                    results.set(label, decomposeComponent(pixmap, components, label));
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ComponentTask(pixmap, components, boundsPrefix, results, from, mid),
+                new ComponentTask(pixmap, components, boundsPrefix, results, mid, to));
+        }
+    }
+
+    /**
+     * Жадный поиск в окне процессора.
+     * @return Прямоугольники в порядке выбора, в координатах всего изображения.
+     */
+    private List<Rect> findRects() {
+        List<Rect> out = new ArrayList<>();
+
+        // 1. Один раз считаем кандидата для КАЖДОГО свободного пикселя и строим из них кучу за O(n).
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                if (!isUsed(x, y)) {
+                    int index = y * width + x;
+                    heap.append(CandidateHeap.key(findLargestRectangleAt(x, y, pixels[pixelBase + y * stride + x]), index));
+                }
+            }
+        }
+        heap.heapify();
+
+        // 2. Достаем лучшего кандидата. Устаревшие записи (пиксель уже занят или площадь
+        //    после пересчета уменьшилась) просто пропускаем.
+        while (!heap.isEmpty()) {
+            long key = heap.poll();
+            int index = CandidateHeap.indexOf(key);
+            int x = index % width;
+            int y = index / width;
+            int area = CandidateHeap.areaOf(key);
+            if (isUsed(x, y) || candidateW[index] * candidateH[index] != area) {
+                continue;
+            }
+            if (dirty[index]) {
+                // Все остальные ключи не больше этого, поэтому если площадь не изменилась,
+                // кандидат по-прежнему лучший. Иначе возвращаем его в очередь с новой площадью.
+                dirty[index] = false;
+                int actualArea = findLargestRectangleAt(x, y, pixels[pixelBase + y * stride + x]);
+                if (actualArea != area) {
+                    heap.add(CandidateHeap.key(actualArea, index));
+                    continue;
+                }
             }
 
-            // 5. Фиксируем лучший найденный прямоугольник: добавляем в результат и помечаем как использованный.
-            out.computeIfAbsent(bestRectColor, k -> new ArrayList<>()).add(bestRect);
+            // 3. Фиксируем прямоугольник и помечаем затронутых кандидатов.
+            Rect bestRect = new Rect(x, y, candidateW[index], candidateH[index]);
+            out.add(new Rect(originX + x, originY + y, bestRect.w, bestRect.h));
             markRect(bestRect);
+            invalidateCandidates(bestRect, pixels[pixelBase + y * stride + x]);
         }
 
         return out;
     }
 
     /**
-     * Находит самый большой прямоугольник заданного цвета, который можно начать в (startX, startY).
+     * Помечает кандидатов, чье окно поиска пересекается с только что занятым прямоугольником.
+     * Такое окно состоит из пикселей того же цвета, что и прямоугольник, начинается в точке кандидата
+     * и уходит вправо и вниз, сужаясь. Поэтому:
+     * <ul>
+     *   <li>в строках прямоугольника достаточно пройти влево от него, пока окна до него дотягиваются;</li>
+     *   <li>выше прямоугольника кандидат может стоять только в колонке, где пиксели этого цвета
+     *       непрерывно тянутся вниз до его верхней строки, - такие колонки ведем вверх, пока они не кончатся.</li>
+     * </ul>
+     * Сохраненное окно помеченного кандидата не меньше настоящего, а чистый кандидат не может
+     * опираться на пиксель, занятый после его расчета, поэтому такие отсечения безопасны.
      */
-    private Rect findLargestRectangleAt(int startX, int startY, int color) {
-        int maxWidth = 0;
-        // Находим максимально возможную ширину от стартовой точки
-        for (int x = startX; x < width; x++) {
-            if (pixmap.get(x, startY) == color && !used[x][startY]) {
-                maxWidth++;
-            } else {
-                break;
+    private void invalidateCandidates(Rect rect, int color) {
+        int right = rect.x + rect.w - 1;
+        int bottom = rect.y + rect.h - 1;
+        for (int y = rect.y; y <= bottom; y++) {
+            for (int x = rect.x - 1; x >= 0 && !isUsed(x, y); x--) {
+                int index = y * width + x;
+                if (windowRight[index] < rect.x) {
+                    break;
+                }
+                dirty[index] = true;
             }
         }
 
+        int left = rect.x;
+        while (left > 0 && !isUsed(left - 1, rect.y) && pixels[pixelBase + rect.y * stride + left - 1] == color) {
+            left--;
+        }
+        Arrays.fill(alive, left, right + 1, true);
+        for (int y = rect.y - 1; y >= 0 && left <= right; y--) {
+            int pixelRow = pixelBase + y * stride;
+            for (int x = left; x <= right; x++) {
+                if (!alive[x]) {
+                    continue;
+                }
+                if (pixels[pixelRow + x] != color || isUsed(x, y)) {
+                    alive[x] = false;
+                    continue;
+                }
+                int index = y * width + x;
+                if (windowRight[index] >= rect.x && windowBottom[index] >= rect.y) {
+                    dirty[index] = true;
+                }
+            }
+            while (left <= right && !alive[left]) {
+                left++;
+            }
+            while (right >= left && !alive[right]) {
+                right--;
+            }
+        }
+        if (left <= right) {
+            Arrays.fill(alive, left, right + 1, false);
+        }
+    }
+
+    /**
+     * Находит самый большой прямоугольник заданного цвета, который можно начать в (startX, startY).
+     * Размеры записываются в кэш кандидатов (без создания объектов), попутно запоминается окно
+     * из подходящих пикселей, от которых зависит результат.
+     * @return Площадь найденного прямоугольника.
+     */
+    private int findLargestRectangleAt(int startX, int startY, int color) {
+        // Находим максимально возможную ширину от стартовой точки
+        int maxWidth = rowRun(startX, startY, color, width - startX);
+        int index = startY * width + startX;
+        windowRight[index] = startX + maxWidth - 1;
+        windowBottom[index] = startY;
+
         int bestArea = 0;
-        Rect bestRect = new Rect(startX, startY, 0, 0);
+        candidateW[index] = 0;
+        candidateH[index] = 0;
 
         // Теперь пытаемся расширить эту полоску вниз, уменьшая ширину при необходимости
         for (int y = startY; y < height; y++) {
-            int currentWidth = 0;
-            for (int x = startX; x < startX + maxWidth; x++) {
-                if (pixmap.get(x, y) == color && !used[x][y]) {
-                    currentWidth++;
-                } else {
-                    break;
-                }
-            }
+            int currentWidth = rowRun(startX, y, color, maxWidth);
             // Если ширина на этой строке стала меньше, обновляем максимальную ширину
             maxWidth = Math.min(maxWidth, currentWidth);
             
             if (maxWidth == 0) {
                 break;
             }
+            windowBottom[index] = y;
 
             int currentHeight = y - startY + 1;
             int currentArea = maxWidth * currentHeight;
 
             if (currentArea > bestArea) {
                 bestArea = currentArea;
-                bestRect = new Rect(startX, startY, maxWidth, currentHeight);
+                candidateW[index] = maxWidth;
+                candidateH[index] = currentHeight;
+            }
+        }
+        return bestArea;
+    }
+
+    /**
+     * Длина отрезка свободных пикселей цвета color, начинающегося в (x, y), но не больше limit.
+     * Считается по 64 пикселя за раз: маска "свободен" (~used) объединяется с маской
+     * "совпадает с левым соседом" (sameAsNext, сдвинутая на 1), а длина отрезка - это число
+     * единиц подряд, т.е. Long.numberOfTrailingZeros от инверсии.
+     */
+    private int rowRun(int x, int y, int color, int limit) {
+        if (limit <= 0 || pixels[pixelBase + y * stride + x] != color) {
+            return 0;
+        }
+        int word = y * wordsPerRow + (x >>> 6);
+        int shift = x & 63;
+        if (limit == 1) {
+            return (int) (~used[word] >>> shift) & 1;
+        }
+        int count = 0;
+        // Стартовый пиксель уже проверен на цвет, поэтому для него бит "совпадает с соседом" ставим сами.
+        long carry = 1L << shift;
+        while (count < limit) {
+            long same = (sameAsNext[word] << 1) | carry;
+            long bits = (~used[word] & same) >>> shift;
+            int run = Long.numberOfTrailingZeros(~bits);
+            int available = 64 - shift;
+            if (run < available) {
+                return Math.min(limit, count + run);
             }
+            count += available;
+            carry = sameAsNext[word] >>> 63;
+            word++;
+            shift = 0;
         }
-        return bestRect;
+        return limit;
+    }
+
+    private boolean isUsed(int x, int y) {
+        return (used[y * wordsPerRow + (x >>> 6)] & (1L << x)) != 0;
     }
 
     /**
-     * Помечает пиксели внутри прямоугольника как использованные.
+     * Помечает пиксели внутри прямоугольника как использованные (побитовым ИЛИ по словам строки).
      */
     private void markRect(Rect rect) {
-        for (int y = 0; y < rect.h; y++) {
-            for (int x = 0; x < rect.w; x++) {
-                used[rect.x + x][rect.y + y] = true;
+        int from = rect.x;
+        int to = rect.x + rect.w; // не включительно
+        int firstWord = from >>> 6;
+        int lastWord = (to - 1) >>> 6;
+        long firstMask = -1L << from;
+        long lastMask = -1L >>> (-to & 63);
+        for (int y = rect.y; y < rect.y + rect.h; y++) {
+            int maskRow = y * wordsPerRow;
+            if (firstWord == lastWord) {
+                used[maskRow + firstWord] |= firstMask & lastMask;
+            } else {
+                used[maskRow + firstWord] |= firstMask;
+                for (int w = firstWord + 1; w < lastWord; w++) {
+                    used[maskRow + w] = -1L;
+                }
+                used[maskRow + lastWord] |= lastMask;
+            }
+        }
+    }
+
+    /**
+     * Двоичная куча на примитивных long без упаковки в объекты.
+     * Ключ: старшие 32 бита - площадь, младшие - инвертированный индекс пикселя,
+     * поэтому при равной площади первым выходит пиксель, который раньше в порядке строк.
+     */
+    private static class CandidateHeap {
+        private long[] items = new long[64];
+        private int size = 0;
+
+        static long key(int area, int index) {
+            return ((long) area << 32) | (~index & 0xFFFFFFFFL);
+        }
+
+        static int areaOf(long key) {
+            return (int) (key >>> 32);
+        }
+
+        static int indexOf(long key) {
+            return ~(int) key;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        /**
+         * Добавляет ключ без восстановления порядка; после серии вызовов нужен {@link #heapify()}.
+         */
+        void append(long key) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            items[size++] = key;
+        }
+
+        void heapify() {
+            for (int i = (size >>> 1) - 1; i >= 0; i--) {
+                siftDown(i, items[i]);
+            }
+        }
+
+        void add(long key) {
+            if (size == items.length) {
+                items = Arrays.copyOf(items, size * 2);
+            }
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (items[parent] >= key) {
+                    break;
+                }
+                items[i] = items[parent];
+                i = parent;
+            }
+            items[i] = key;
+        }
+
+        long poll() {
+            long top = items[0];
+            long last = items[--size];
+            if (size > 0) {
+                siftDown(0, last);
+            }
+            return top;
+        }
+
+        private void siftDown(int i, long key) {
+            int half = size >>> 1;
+            while (i < half) {
+                int child = 2 * i + 1;
+                if (child + 1 < size && items[child + 1] > items[child]) {
+                    child++;
+                }
+                if (key >= items[child]) {
+                    break;
+                }
+                items[i] = items[child];
+                i = child;
             }
+            items[i] = key;
         }
     }
 
@@ -2,18 +2,17 @@ package com.mkso4ka.mindustry.matrixproc;
 
 import java.awt.Graphics2D;
 import java.awt.image.BufferedImage;
+import java.util.concurrent.ForkJoinPool;
 
 public class ImageUtils {
 
     /**
-     * Изменяет размер изображения до заданных ширины и высоты.
+     * Изменяет размер изображения до заданных ширины и высоты (ближайший сосед, результат - TYPE_INT_ARGB).
+     * Другие фильтры - {@link Resampler#resize}.
+     * @param pool Пул, в котором масштабируются полосы строк.
      */
-    public static BufferedImage resize(BufferedImage originalImage, int targetWidth, int targetHeight) {
-        BufferedImage resizedImage = new BufferedImage(targetWidth, targetHeight, originalImage.getType());
-        Graphics2D g = resizedImage.createGraphics();
-        g.drawImage(originalImage, 0, 0, targetWidth, targetHeight, null);
-        g.dispose();
-        return resizedImage;
+    public static BufferedImage resize(BufferedImage originalImage, int targetWidth, int targetHeight, ForkJoinPool pool) {
+        return Resampler.resize(originalImage, targetWidth, targetHeight, Resampler.Filter.NEAREST, pool);
     }
 
     /**
@@ -0,0 +1,106 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Послойное разбиение: Mindustry выполняет команды по порядку, поэтому фон можно залить одной
+ * командой draw clear на весь дисплей, а остальные цвета нарисовать поверх. Пиксели фона тогда
+ * не требуют ни одного прямоугольника, а большой фон с редкими "дырками" перестает распадаться
+ * на множество полос.
+ * <p>
+ * Прямоугольники переднего плана по-прежнему не пересекаются и не заходят на пиксели фона, поэтому
+ * порядок важен только между фоном и всем остальным. Фоном пробуются несколько самых частых цветов;
+ * варианты сравниваются по тому, что запишет CommandEmitter ({@link CommandEmitter#measure}): сначала
+ * по числу процессоров, затем по числу инструкций. Если ни один не дешевле плоского разбиения, остается плоское. Полупрозрачные фрагменты не наслаиваются: draw clear не знает альфы, а
+ * полупрозрачный передний план смешался бы с фоном.
+ * <p>
+ * Порядок рисования передается порядком цветов в карте: фон идет первым цветом с единственным
+ * прямоугольником на весь дисплей (его CommandEmitter записывает как draw clear).
+ */
+class LayeredDecomposer {
+    /** Сколько самых частых цветов пробуется как фон. */
+    private static final int BACKGROUND_CANDIDATES = 3;
+
+    /** Цвет фона; имеет смысл, только если layered. */
+    final int background;
+    final boolean layered;
+    /** Разбиение без фона (или плоское разбиение, если наслаивание не выгодно). */
+    final Map<Integer, List<Rect>> foreground;
+
+    private LayeredDecomposer(int background, boolean layered, Map<Integer, List<Rect>> foreground) {
+        this.background = background;
+        this.layered = layered;
+        this.foreground = foreground;
+    }
+
+    /**
+     * Выбирает фон для фрагмента.
+     * @param flat Плоское разбиение пикселей pixmap; по нему считаются частоты цветов и исходная стоимость.
+     * @param commandsPerProcessor Сколько инструкций помещается в один процессор.
+     * @param flushLimit Сколько команд рисования записывается между двумя drawflush.
+     */
+    static LayeredDecomposer choose(Pixmap pixmap, Map<Integer, List<Rect>> flat, int commandsPerProcessor, int flushLimit, ForkJoinPool pool) {
+        LayeredDecomposer best = new LayeredDecomposer(0, false, flat);
+        CommandEmitter.Cost bestCost = CommandEmitter.measure(flat, false, commandsPerProcessor, flushLimit);
+
+        List<Map.Entry<Integer, Long>> areas = new ArrayList<>();
+        for (Map.Entry<Integer, List<Rect>> entry : flat.entrySet()) {
+            if ((entry.getKey() >>> 24) != 0xff) {
+                return best;
+            }
+            long area = 0;
+            for (Rect rect : entry.getValue()) {
+                area += (long) rect.w * rect.h;
+            }
+            areas.add(Map.entry(entry.getKey(), area));
+        }
+        areas.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+
+        int width = pixmap.getWidth();
+        int height = pixmap.getHeight();
+        boolean[] mask = new boolean[width * height];
+        for (int candidate = 0; candidate < Math.min(BACKGROUND_CANDIDATES, areas.size()); candidate++) {
+            int color = areas.get(candidate).getKey();
+            for (int y = 0; y < height; y++) {
+                for (int x = 0; x < width; x++) {
+                    mask[y * width + x] = pixmap.get(x, y) != color;
+                }
+            }
+            Map<Integer, List<Rect>> foreground = new ImageProcessor(pixmap).groupOptimal(pool, mask);
+            LayeredDecomposer layers = new LayeredDecomposer(color, true, foreground);
+            // Для draw clear важен только цвет фона, поэтому область дисплея - просто весь фрагмент.
+            Map<Integer, List<Rect>> ordered = layers.withBackground(foreground, new Rect(0, 0, width, height));
+            CommandEmitter.Cost cost = CommandEmitter.measure(ordered, true, commandsPerProcessor, flushLimit);
+            if (cost.cheaperThan(bestCost)) {
+                best = layers;
+                bestCost = cost;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Собирает итоговое разбиение в порядке рисования: сначала фон на весь дисплей, затем передний план.
+     * @param foreground Передний план (например, улучшенный RectangleOptimizer).
+     * @param display Видимая область дисплея в координатах фрагмента.
+     */
+    Map<Integer, List<Rect>> withBackground(Map<Integer, List<Rect>> foreground, Rect display) {
+        if (!layered) {
+            return foreground;
+        }
+        Map<Integer, List<Rect>> ordered = new LinkedHashMap<>();
+        List<Rect> fill = new ArrayList<>(1);
+        fill.add(new Rect(display.x, display.y, display.w, display.h));
+        ordered.put(background, fill);
+        for (Map.Entry<Integer, List<Rect>> entry : foreground.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                ordered.put(entry.getKey(), entry.getValue());
+            }
+        }
+        return ordered;
+    }
+}
@@ -1,217 +1,363 @@
 package com.mkso4ka.mindustry.matrixproc;
 
-import java.awt.Color;
-import java.awt.Graphics2D;
-import java.awt.image.BufferedImage;
+import java.awt.Rectangle;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
-import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import javax.imageio.ImageIO;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Main {
-    private static final int COMMANDS_PER_PROCESSOR = 989;
-    private static final int BORDER_SIZE = 8;
+    static final int COMMANDS_PER_PROCESSOR = 989;
+    static final int BORDER_SIZE = 8;
+
+    private static final String USAGE = String.join("\n",
+        "Использование:",
+        "  Main <изображение> [параметры]             - одно изображение (GIF или папка кадров - с --animation)",
+        "  Main --batch <папка|манифест> [параметры]  - пакетная конвертация в одном запуске JVM",
+        "  Main --serve <порт> [параметры]            - HTTP-сервис на 127.0.0.1: POST /convert?displays=XxY&size=N",
+        "Параметры:",
+        "  --out <папка>           куда писать результаты (по умолчанию текущая папка; в пакете - подпапка на изображение)",
+        "  --displays <X>x<Y>      сетка дисплеев (1x1)",
+        "  --size <3|6>            размер дисплея в блоках (3)",
+        "  --palette <N>           квантование до N цветов (0 - без квантования)",
+        "  --tile-palette          своя палитра у каждого фрагмента вместо общей",
+        "  --budget <N>            бюджет инструкций на дисплей, режим с потерями (0 - без потерь)",
+        "  --optimize <мс>         время на сокращение числа прямоугольников каждого дисплея (0 - выкл.)",
+        "  --layered               фон заливается draw clear, остальные цвета рисуются поверх него",
+        "  --flush <N>             drawflush после каждых N команд рисования (256 - размер буфера процессора)",
+        "  --animation             источник - GIF или папка с пронумерованными PNG-кадрами",
+        "  --filter <nearest|box|lanczos3>   масштабирование исходника (nearest: меньше цветов - меньше команд)",
+        "  --region-decode         читать исходник по областям фрагментов (само включается от 32 Мп)",
+        "  --encoder <image_io|fast|stored>  кодировщик PNG схемы размещения (fast)",
+        "  --debug <off|summary|full>        отладочные изображения (одно изображение: full, пакет: off)",
+        "  --cache <папка|none>    кэш разбиений фрагментов (./tile_cache)",
+        "  --cache-mb <N>          предельный размер кэша в МиБ (256)",
+        "  --threads <N>           потоков для вычислений (число ядер)",
+        "  --jobs <N>              пакет: сколько изображений обрабатывается одновременно (число ядер, не меньше 2);",
+        "                          сервис: сколько запросов конвертируется одновременно (2)",
+        "  --queue <N>             сервис: сколько запросов может ждать очереди, остальным - 503 (8)",
+        "Манифест - текстовый файл, строка на изображение: <путь> [XxY] [размер] [animation].",
+        "Пути считаются от папки манифеста, строки с # - комментарии.");
+
+    private static final List<String> IMAGE_EXTENSIONS = Arrays.asList("png", "jpg", "jpeg", "gif", "bmp");
 
     public static void main(String[] args) {
+        if (args.length == 0) {
+            System.out.println(USAGE);
+            return;
+        }
+        ConversionOptions defaults = new ConversionOptions();
+        File batchInput = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int jobs = -1;
+        int servePort = -1;
+        int queueCapacity = 8;
+        File tileCacheDir = new File("./tile_cache");
+        long tileCacheMaxBytes = 256L * 1024 * 1024;
+        boolean debugLevelSet = false;
         try {
-            // --- Входные параметры ---
-            int displaysX = 1;
-            int displaysY = 1;
-            int displaySize = 3;
-            File sourceImageFile = new File("/storage/emulated/0/1АA/python.png");
-
-            // --- 1. Очистка и создание папок ---
-            File outputDir = new File("./output_images");
-            File processorCodeDir = new File("./outputProcessors");
-            cleanAndCreateDirectory(outputDir);
-            cleanAndCreateDirectory(processorCodeDir);
-            System.out.println("1. Папки для вывода очищены.");
-
-            // 2. Определяем параметры
-            int displayPixelSize = getDisplayPixelSize(displaySize);
-            System.out.println("2. Параметры: Видимая область=" + displayPixelSize + "px, Внутренняя рамка=" + BORDER_SIZE + "px.");
-
-            // 3. Рассчитываем итоговый размер и создаем мастер-изображение
-            int totalWidth = (displaysX * displayPixelSize) + (Math.max(0, displaysX - 1) * BORDER_SIZE * 2);
-            int totalHeight = (displaysY * displayPixelSize) + (Math.max(0, displaysY - 1) * BORDER_SIZE * 2);
-            System.out.println("3. Масштабирование исходного изображения до " + totalWidth + "x" + totalHeight + ".");
-            BufferedImage masterImage = ImageIO.read(sourceImageFile);
-            BufferedImage scaledMasterImage = ImageUtils.resize(masterImage, totalWidth, totalHeight);
-            ImageIO.write(scaledMasterImage, "png", new File(outputDir, "scaled_master_image.png")); // ДЕБАГ 1
-
-            // 4. Создаем чертеж
-            DisplayMatrix displayMatrix = new DisplayMatrix();
-            MatrixBlueprint blueprint = displayMatrix.placeDisplaysXxY(
-                displaysX, displaysY, displaySize, DisplayProcessorMatrixFinal.PROCESSOR_REACH
-            );
-            System.out.println("4. Создан чертеж для " + blueprint.displayCoordinates.length + " дисплеев.");
-
-            // 5. Анализируем фрагменты
-            System.out.println("5. Анализ и нарезка фрагментов...");
-            int[] processorsPerDisplay = new int[blueprint.displayCoordinates.length];
-            
-            for (int i = 0; i < displaysY; i++) {
-                for (int j = 0; j < displaysX; j++) {
-                    int displayIndex = j * displaysY + i;
-
-                    // 5.1. Рассчитываем размер и смещение для вырезания
-                    int sliceWidth = displayPixelSize + (j > 0 ? BORDER_SIZE : 0) + (j < displaysX - 1 ? BORDER_SIZE : 0);
-                    int sliceHeight = displayPixelSize + (i > 0 ? BORDER_SIZE : 0) + (i < displaysY - 1 ? BORDER_SIZE : 0);
-                    int subX = j * (displayPixelSize + BORDER_SIZE * 2) - (j > 0 ? BORDER_SIZE : 0);
-                    int subY = i * (displayPixelSize + BORDER_SIZE * 2) - (i > 0 ? BORDER_SIZE : 0);
-
-                    // 5.2. Вырезаем фрагмент
-                    BufferedImage finalSlice = scaledMasterImage.getSubimage(subX, subY, sliceWidth, sliceHeight);
-                    ImageIO.write(finalSlice, "png", new File(outputDir, "debug_tile_raw_slice_" + displayIndex + ".png")); // ДЕБАГ 2
-
-                    // 5.3. Анализируем фрагмент
-                    Pixmap pixmap = Pixmap.fromBufferedImage(finalSlice);
-                    ImageProcessor processor = new ImageProcessor(pixmap);
-                    Map<Integer, List<Rect>> rects = processor.groupOptimal();
-
-                    // --- КЛЮЧЕВОЕ ИСПРАВЛЕНИЕ: Определяем смещение для коррекции координат ---
-                    int offsetX = (j > 0) ? BORDER_SIZE : 0;
-                    int offsetY = (i > 0) ? BORDER_SIZE : 0;
-
-                    // 5.4. Генерируем команды и считаем процессоры
-                    List<String> allCommands = generateCommandList(rects, displayPixelSize, offsetX, offsetY);
-                    int commandCount = allCommands.size();
-                    processorsPerDisplay[displayIndex] = (int) Math.ceil((double) commandCount / COMMANDS_PER_PROCESSOR);
-                    System.out.println("   Дисплей " + displayIndex + " (X:" + j + ",Y:" + i + "): "
-                        + "Срез " + sliceWidth + "x" + sliceHeight + ". "
-                        + "Смещение (" + offsetX + "," + offsetY + "). "
-                        + commandCount + " команд -> " + processorsPerDisplay[displayIndex] + " проц.");
-
-                    // --- Секция расширенного дебага ---
-                    createDebugImages(outputDir, displayIndex, finalSlice, rects, displayPixelSize, offsetX, offsetY);
-
-                    // 5.5. Сохраняем код для процессоров
-                    for (int p = 0; p < processorsPerDisplay[displayIndex]; p++) {
-                        int start = p * COMMANDS_PER_PROCESSOR;
-                        int end = Math.min(start + COMMANDS_PER_PROCESSOR, commandCount);
-                        List<String> chunk = allCommands.subList(start, end);
-                        StringBuilder codeBuilder = new StringBuilder();
-                        chunk.forEach(command -> codeBuilder.append(command).append("\n"));
-                        codeBuilder.append("drawflush display1");
-                        String fileName = "display_" + displayIndex + "_proc_" + p + ".txt";
-                        Files.write(Paths.get(processorCodeDir.getPath(), fileName), codeBuilder.toString().getBytes());
+            for (int i = 0; i < args.length; i++) {
+                String arg = args[i];
+                switch (arg) {
+                    case "--batch": batchInput = new File(value(args, ++i, arg)); break;
+                    case "--serve": servePort = intValue(args, ++i, arg); break;
+                    case "--queue": queueCapacity = intValue(args, ++i, arg); break;
+                    case "--out": defaults.outputDir = new File(value(args, ++i, arg)); break;
+                    case "--displays": parseGrid(value(args, ++i, arg), defaults); break;
+                    case "--size": defaults.displaySize = intValue(args, ++i, arg); break;
+                    case "--palette": defaults.paletteSize = intValue(args, ++i, arg); break;
+                    case "--tile-palette": defaults.sharedPalette = false; break;
+                    case "--budget": defaults.commandBudget = intValue(args, ++i, arg); break;
+                    case "--optimize": defaults.optimizeMillis = intValue(args, ++i, arg); break;
+                    case "--layered": defaults.layered = true; break;
+                    case "--flush": defaults.flushLimit = intValue(args, ++i, arg); break;
+                    case "--animation": defaults.animation = true; break;
+                    case "--region-decode": defaults.regionDecode = true; break;
+                    case "--filter": defaults.filter = Resampler.Filter.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT)); break;
+                    case "--encoder": defaults.schematicEncoder = PngWriter.Encoder.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT)); break;
+                    case "--debug":
+                        defaults.debugLevel = DebugOutput.Level.valueOf(value(args, ++i, arg).toUpperCase(Locale.ROOT));
+                        debugLevelSet = true;
+                        break;
+                    case "--cache": {
+                        String cache = value(args, ++i, arg);
+                        tileCacheDir = cache.equals("none") ? null : new File(cache);
+                        break;
                     }
+                    case "--cache-mb": tileCacheMaxBytes = intValue(args, ++i, arg) * 1024L * 1024; break;
+                    case "--threads": threads = intValue(args, ++i, arg); break;
+                    case "--jobs": jobs = intValue(args, ++i, arg); break;
+                    default:
+                        if (arg.startsWith("--") || defaults.source != null) {
+                            throw new IllegalArgumentException("Неизвестный параметр: " + arg);
+                        }
+                        defaults.source = new File(arg);
                 }
             }
+            int modes = (batchInput != null ? 1 : 0) + (defaults.source != null ? 1 : 0) + (servePort >= 0 ? 1 : 0);
+            if (modes != 1) {
+                throw new IllegalArgumentException("Нужен либо путь к изображению, либо --batch, либо --serve.");
+            }
+            if (jobs < 0) {
+                jobs = servePort >= 0 ? 2 : Math.max(2, threads);
+            }
+            if (threads < 1 || jobs < 1 || queueCapacity < 0) {
+                throw new IllegalArgumentException("--threads и --jobs должны быть положительными, --queue - не меньше 0.");
+            }
+            defaults.validate();
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (batchInput != null && !debugLevelSet) {
+            // В пакете отладочные изображения по умолчанию не пишутся.
+            defaults.debugLevel = DebugOutput.Level.OFF;
+        }
 
-            System.out.println("--- ИТОГ АНАЛИЗА ---");
-            System.out.println("Код для процессоров сохранен в папку: " + processorCodeDir.getName());
-            System.out.println("Рассчитанные потребности: " + Arrays.toString(processorsPerDisplay));
-            System.out.println("----------------------");
-
-            // 6. Запускаем физическое размещение
-            DisplayProcessorMatrixFinal displayProcessorMatrix = new DisplayProcessorMatrixFinal(
-                blueprint.n, blueprint.m, processorsPerDisplay, blueprint.displayCoordinates, displaySize
-            );
-            displayProcessorMatrix.placeProcessors();
-
-            // 7. Сохраняем результат
-            displayProcessorMatrix.createImage(outputDir.getPath() + "/final_schematic.png");
-
+        // Один пул на все счетные этапы всех изображений - по числу ядер. Пул fork-join: внутри фрагмента
+        // разбиение, квантование и оптимизатор дробят работу в тот же пул, а не в общий ForkJoinPool.commonPool().
+        ForkJoinPool cpuPool = new ForkJoinPool(threads);
+        TileCache cache = null;
+        boolean success = false;
+        try {
+            cache = tileCacheDir != null ? TileCache.open(tileCacheDir.toPath(), tileCacheMaxBytes) : null;
+            if (servePort >= 0) {
+                runServer(servePort, cpuPool, threads, jobs, queueCapacity, cache);
+                success = true;
+            } else if (batchInput == null) {
+                ImageConversion.convert(defaults, cpuPool, threads, cache, System.out);
+                success = true;
+            } else {
+                success = runBatch(batchInput, defaults, cpuPool, threads, jobs, cache);
+            }
         } catch (Exception e) {
             System.err.println("Произошла критическая ошибка!");
             e.printStackTrace();
+        } finally {
+            cpuPool.shutdown();
+            if (cache != null) {
+                try {
+                    cache.close();
+                } catch (IOException e) {
+                    System.err.println("Ошибка при закрытии кэша: " + e.getMessage());
+                }
+            }
+        }
+        if (!success) {
+            System.exit(1);
         }
     }
 
     /**
-     * Создает два отладочных изображения для одного фрагмента.
+     * Пакетный режим. Виртуальных потоков в JDK 17 нет, поэтому чтение и запись идут в пуле
+     * ввода-вывода из jobs потоков - он же ограничивает число изображений в памяти, - а счетные
+     * этапы всех изображений делят один cpuPool по числу ядер. Ход каждого изображения пишется
+     * в log.txt его папки, в консоль - строка на изображение.
+     * @return true, если все изображения сконвертированы.
      */
-    private static void createDebugImages(File outputDir, int displayIndex, BufferedImage finalSlice, Map<Integer, List<Rect>> rects, int displayPixelSize, int offsetX, int offsetY) throws IOException {
-        // ДЕБАГ 3: Рисуем найденные прямоугольники на "сыром" фрагменте
-        BufferedImage sliceWithRects = new BufferedImage(finalSlice.getWidth(), finalSlice.getHeight(), BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g1 = sliceWithRects.createGraphics();
-        g1.drawImage(finalSlice, 0, 0, null);
-        for (List<Rect> rectList : rects.values()) {
-            for (Rect rect : rectList) {
-                g1.setColor(Color.RED);
-                g1.drawRect(rect.x, rect.y, rect.w - 1, rect.h - 1);
+    private static boolean runBatch(File input, ConversionOptions defaults, ForkJoinPool cpuPool, int threads, int jobs,
+                                    TileCache cache) throws IOException, InterruptedException {
+        List<ConversionOptions> images = input.isDirectory() ? scanDirectory(input, defaults) : readManifest(input, defaults);
+        System.out.println("Пакет: " + images.size() + " изображений, потоков вычислений " + threads
+            + ", одновременно изображений " + jobs + ", результаты в " + defaults.outputDir.getPath());
+        long started = System.nanoTime();
+        ExecutorService ioPool = Executors.newFixedThreadPool(jobs);
+        List<Future<String>> results = new ArrayList<>();
+        AtomicInteger failed = new AtomicInteger();
+        try {
+            for (int k = 0; k < images.size(); k++) {
+                ConversionOptions options = images.get(k);
+                String prefix = "[" + (k + 1) + "/" + images.size() + "] " + options.source.getName() + ": ";
+                results.add(ioPool.submit(() -> {
+                    String line;
+                    Files.createDirectories(options.outputDir.toPath());
+                    try (PrintStream log = new PrintStream(new FileOutputStream(new File(options.outputDir, "log.txt")), true, StandardCharsets.UTF_8)) {
+                        try {
+                            ImageConversion.Result result = ImageConversion.convert(options, cpuPool, threads, cache, log);
+                            line = prefix + "размещено " + result.placedProcessors + " из " + result.requiredProcessors
+                                + " проц., " + result.millis + " мс -> " + options.outputDir.getPath();
+                        } catch (Exception e) {
+                            e.printStackTrace(log);
+                            failed.incrementAndGet();
+                            line = prefix + "ОШИБКА: " + e;
+                        }
+                    }
+                    System.out.println(line);
+                    return line;
+                }));
             }
-        }
-        g1.dispose();
-        ImageIO.write(sliceWithRects, "png", new File(outputDir, "debug_tile_with_rects_" + displayIndex + ".png"));
-
-        // ДЕБАГ 4: Симулируем отрисовку на дисплее с исправленными координатами
-        BufferedImage commandPreview = new BufferedImage(displayPixelSize, displayPixelSize, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2 = commandPreview.createGraphics();
-        g2.setColor(Color.BLACK); // Фон для наглядности
-        g2.fillRect(0, 0, displayPixelSize, displayPixelSize);
-        for (Map.Entry<Integer, List<Rect>> entry : rects.entrySet()) {
-            g2.setColor(new Color(entry.getKey(), true));
-            for (Rect rect : entry.getValue()) {
-                int correctedX = rect.x - offsetX;
-                int correctedY = rect.y - offsetY;
-                // Проверка, чтобы не рисовать за пределами видимой области
-                if (correctedX >= 0 && correctedY >= 0 && correctedX + rect.w <= displayPixelSize && correctedY + rect.h <= displayPixelSize) {
-                    g2.fillRect(correctedX, correctedY, rect.w, rect.h);
+            for (Future<String> result : results) {
+                try {
+                    result.get();
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                    System.out.println("ОШИБКА: " + e);
                 }
             }
+        } finally {
+            ioPool.shutdown();
         }
-        g2.dispose();
-        ImageIO.write(commandPreview, "png", new File(outputDir, "debug_final_commands_preview_" + displayIndex + ".png"));
+        System.out.println("Пакет завершен: успешно " + (images.size() - failed.get()) + " из " + images.size()
+            + " за " + (System.nanoTime() - started) / 1_000_000 + " мс.");
+        return failed.get() == 0;
     }
 
-    private static List<String> generateCommandList(Map<Integer, List<Rect>> rects, int displayPixelSize, int offsetX, int offsetY) {
-        List<String> commands = new ArrayList<>();
-        for (Map.Entry<Integer, List<Rect>> entry : rects.entrySet()) {
-            List<Rect> rectList = entry.getValue();
-            if (!rectList.isEmpty()) {
-                commands.add(formatColorCommand(entry.getKey()));
-                for (Rect rect : rectList) {
-                    int correctedX = rect.x - offsetX;
-                    int correctedY = rect.y - offsetY;
-                    // Инвертируем Y для Mindustry, используя correctedY и размер видимой области
-                    int mindustryY = displayPixelSize - correctedY - rect.h;
-                    commands.add(formatRectCommand(correctedX, mindustryY, rect.w, rect.h));
-                }
+    /**
+     * Режим сервиса: работает до остановки процесса (Ctrl+C, SIGTERM). Хук остановки дожидается,
+     * пока main закроет пулы и кэш, иначе индекс кэша не успеет записаться.
+     */
+    private static void runServer(int port, ForkJoinPool cpuPool, int threads, int maxConcurrent, int queueCapacity,
+                                  TileCache cache) throws IOException, InterruptedException {
+        ConversionServer server = ConversionServer.start(port, cpuPool, threads, cache, maxConcurrent, queueCapacity);
+        Thread mainThread = Thread.currentThread();
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.stop();
+            try {
+                mainThread.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
             }
-        }
-        return commands;
+        }, "matrixproc-shutdown"));
+        System.out.println("Сервис слушает http://127.0.0.1:" + server.getPort() + "/convert (одновременно "
+            + maxConcurrent + ", очередь " + queueCapacity + ", потоков вычислений " + threads + ").");
+        server.awaitStop();
+        System.out.println("Сервис остановлен.");
     }
 
-    private static String formatRectCommand(int x, int y, int w, int h) {
-        return String.format("draw rect %d %d %d %d 0 0", x, y, w, h);
+    /**
+     * Изображения папки (по имени файла) с параметрами по умолчанию.
+     */
+    private static List<ConversionOptions> scanDirectory(File directory, ConversionOptions defaults) throws IOException {
+        File[] files = directory.listFiles(file -> file.isFile() && IMAGE_EXTENSIONS.contains(extension(file.getName())));
+        if (files == null) {
+            throw new IOException("Не удалось прочитать папку " + directory);
+        }
+        Arrays.sort(files);
+        List<ConversionOptions> images = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        for (File file : files) {
+            ConversionOptions options = defaults.copy();
+            options.source = file;
+            options.outputDir = new File(defaults.outputDir, uniqueName(file, names));
+            images.add(options);
+        }
+        return images;
     }
-    
-    // Остальные вспомогательные методы без изменений
-    private static void cleanAndCreateDirectory(File directory) {
-        if (directory.exists()) {
-            File[] files = directory.listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    file.delete();
+
+    /**
+     * Манифест: "путь [XxY] [размер] [animation]" на строку; неуказанное берется из параметров командной строки.
+     */
+    private static List<ConversionOptions> readManifest(File manifest, ConversionOptions defaults) throws IOException {
+        List<ConversionOptions> images = new ArrayList<>();
+        Set<String> names = new HashSet<>();
+        File base = manifest.getAbsoluteFile().getParentFile();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8)) {
+            lineNumber++;
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            String[] tokens = line.split("\\s+");
+            ConversionOptions options = defaults.copy();
+            File source = new File(tokens[0]);
+            options.source = source.isAbsolute() ? source : new File(base, tokens[0]);
+            try {
+                for (int t = 1; t < tokens.length; t++) {
+                    if (tokens[t].contains("x")) {
+                        parseGrid(tokens[t], options);
+                    } else if (tokens[t].equals("animation")) {
+                        options.animation = true;
+                    } else {
+                        options.displaySize = Integer.parseInt(tokens[t]);
+                    }
                 }
+                options.validate();
+            } catch (IllegalArgumentException e) {
+                throw new IOException(manifest + ":" + lineNumber + ": " + e.getMessage(), e);
             }
-        } else {
-            directory.mkdirs();
+            options.outputDir = new File(defaults.outputDir, uniqueName(options.source, names));
+            images.add(options);
+        }
+        return images;
+    }
+
+    /**
+     * Имя папки результатов: имя файла без расширения, при совпадении - с номером.
+     */
+    private static String uniqueName(File source, Set<String> used) {
+        String name = source.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String unique = base;
+        for (int n = 2; !used.add(unique); n++) {
+            unique = base + "-" + n;
+        }
+        return unique;
+    }
+
+    private static String extension(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? "" : name.substring(dot + 1).toLowerCase(Locale.ROOT);
+    }
+
+    static void parseGrid(String value, ConversionOptions options) {
+        String[] parts = value.toLowerCase(Locale.ROOT).split("x");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("Сетка дисплеев должна быть вида XxY: " + value);
+        }
+        options.displaysX = Integer.parseInt(parts[0]);
+        options.displaysY = Integer.parseInt(parts[1]);
+        if (options.displaysX < 1 || options.displaysY < 1) {
+            throw new IllegalArgumentException("Сетка дисплеев должна быть не меньше 1x1: " + value);
         }
     }
 
-    private static int getDisplayPixelSize(int displayBlockSize) {
-        switch (displayBlockSize) {
-            case 3: return 80;
-            case 6: return 176;
-            default:
-                System.err.println("Внимание: Неизвестный размер дисплея " + displayBlockSize + ". Используется размер по умолчанию 80.");
-                return 80;
+    private static String value(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Не указано значение для " + option);
+        }
+        return args[index];
+    }
+
+    private static int intValue(String[] args, int index, String option) {
+        try {
+            return Integer.parseInt(value(args, index, option));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Ожидалось число для " + option + ": " + args[index]);
         }
     }
 
-    private static String formatColorCommand(int pixel) {
-        int a = (pixel >> 24) & 0xff;
-        int r = (pixel >> 16) & 0xff;
-        int g = (pixel >> 8) & 0xff;
-        int b = pixel & 0xff;
-        return String.format("draw color %d %d %d %d 0 0", r, g, b, a);
+    /**
+     * Область фрагмента (i, j) в масштабированном изображении вместе с внутренними рамками соседних дисплеев.
+     */
+    static Rectangle sliceBounds(int i, int j, int displaysX, int displaysY, int displayPixelSize) {
+        int sliceWidth = displayPixelSize + (j > 0 ? BORDER_SIZE : 0) + (j < displaysX - 1 ? BORDER_SIZE : 0);
+        int sliceHeight = displayPixelSize + (i > 0 ? BORDER_SIZE : 0) + (i < displaysY - 1 ? BORDER_SIZE : 0);
+        int subX = j * (displayPixelSize + BORDER_SIZE * 2) - (j > 0 ? BORDER_SIZE : 0);
+        int subY = i * (displayPixelSize + BORDER_SIZE * 2) - (i > 0 ? BORDER_SIZE : 0);
+        return new Rectangle(subX, subY, sliceWidth, sliceHeight);
+    }
+
+    /**
+     * Размер стены в пикселях: видимые области всех дисплеев плюс рамки между ними.
+     */
+    static int wallSize(int displays, int displayPixelSize) {
+        return (displays * displayPixelSize) + (Math.max(0, displays - 1) * BORDER_SIZE * 2);
     }
-}
\ No newline at end of file
+}
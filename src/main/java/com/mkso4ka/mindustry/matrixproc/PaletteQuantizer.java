@@ -0,0 +1,246 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Сокращение палитры методом медианного сечения (median cut).
+ * <p>
+ * Каждый отдельный ARGB-цвет фрагмента превращается в свою команду draw color и свой набор
+ * прямоугольников, поэтому для фотографий число команд резко падает, если заранее свести
+ * изображение к небольшой палитре. Одну палитру можно построить по всему масштабированному
+ * изображению и применить ко всем фрагментам стены - тогда соседние дисплеи используют одинаковые цвета.
+ */
+class PaletteQuantizer {
+    private static final int CHANNELS = 4;
+
+    /** Итоговая палитра. */
+    private final int[] palette;
+    /** Все цвета исходного изображения (отсортированы) и цвет палитры для каждого из них. */
+    private final int[] sourceColors;
+    private final int[] mappedColors;
+
+    private PaletteQuantizer(int[] palette, int[] sourceColors, int[] mappedColors) {
+        this.palette = palette;
+        this.sourceColors = sourceColors;
+        this.mappedColors = mappedColors;
+    }
+
+    public int[] getPalette() {
+        return palette.clone();
+    }
+
+    /**
+     * Строит палитру не более чем из paletteSize цветов.
+     * @param pixels ARGB-пиксели, по которым строится палитра.
+     * @param pool Пул для параллельных этапов: сортировки для гистограммы и подбора ближайшего цвета.
+     */
+    public static PaletteQuantizer build(int[] pixels, int paletteSize, ForkJoinPool pool) {
+        // 1. Гистограмма: параллельная сортировка копии и подсчет одинаковых подряд. Сортировка запускается
+        //    задачей пула pool: вызванная из другого потока, она раздала бы части в общий пул ForkJoinPool.
+        int[] sorted = pixels.clone();
+        pool.submit(() -> Arrays.parallelSort(sorted)).join();
+        int uniqueCount = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                uniqueCount++;
+            }
+        }
+        int[] colors = new int[uniqueCount];
+        int[] counts = new int[uniqueCount];
+        int u = -1;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                colors[++u] = sorted[i];
+            }
+            counts[u]++;
+        }
+
+        // Цветов и так не больше, чем нужно, - палитра совпадает с изображением.
+        if (uniqueCount <= paletteSize) {
+            return new PaletteQuantizer(colors, colors, colors);
+        }
+
+        // 2. Медианное сечение: делим ящик с наибольшим (разброс канала x население) по медиане.
+        int[] order = new int[uniqueCount];
+        for (int i = 0; i < uniqueCount; i++) {
+            order[i] = i;
+        }
+        List<Box> boxes = new ArrayList<>();
+        boxes.add(new Box(0, uniqueCount, colors, counts, order));
+        while (boxes.size() < paletteSize) {
+            Box widest = null;
+            for (Box box : boxes) {
+                if (box.to - box.from > 1 && (widest == null || box.score() > widest.score())) {
+                    widest = box;
+                }
+            }
+            if (widest == null) {
+                break;
+            }
+            boxes.remove(widest);
+            int split = widest.split(colors, counts, order);
+            boxes.add(new Box(widest.from, split, colors, counts, order));
+            boxes.add(new Box(split, widest.to, colors, counts, order));
+        }
+
+        int[] palette = new int[boxes.size()];
+        for (int i = 0; i < palette.length; i++) {
+            palette[i] = boxes.get(i).average(colors, counts, order);
+        }
+
+        // 3. Каждому исходному цвету - ближайший цвет палитры (параллельно по цветам).
+        int[] mapped = new int[colors.length];
+        pool.submit(() -> IntStream.range(0, colors.length).parallel()
+            .forEach(i -> mapped[i] = nearest(palette, colors[i]))).join();
+        return new PaletteQuantizer(palette, colors, mapped);
+    }
+
+    /**
+     * Заменяет цвета изображения на цвета палитры (на месте).
+     */
+    public void apply(Pixmap pixmap) {
+        int[] pixels = pixmap.getPixels();
+        int stride = pixmap.getStride();
+        int lastSource = 0;
+        int lastMapped = map(0);
+        for (int y = 0; y < pixmap.getHeight(); y++) {
+            int row = y * stride;
+            for (int x = 0; x < pixmap.getWidth(); x++) {
+                int color = pixels[row + x];
+                // Соседние пиксели часто одного цвета - не ищем повторно.
+                if (color != lastSource) {
+                    lastSource = color;
+                    lastMapped = map(color);
+                }
+                pixels[row + x] = lastMapped;
+            }
+        }
+    }
+
+    private int map(int color) {
+        int index = Arrays.binarySearch(sourceColors, color);
+        return index >= 0 ? mappedColors[index] : nearest(palette, color);
+    }
+
+    private static int nearest(int[] palette, int color) {
+        int best = palette[0];
+        long bestDistance = Long.MAX_VALUE;
+        for (int candidate : palette) {
+            long distance = distance(color, candidate);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Взвешенное расстояние между цветами: глаз чувствительнее всего к зеленому и меньше всего к синему.
+     */
+    private static long distance(int a, int b) {
+        long da = channel(a, 3) - channel(b, 3);
+        long dr = channel(a, 2) - channel(b, 2);
+        long dg = channel(a, 1) - channel(b, 1);
+        long db = channel(a, 0) - channel(b, 0);
+        return 3 * dr * dr + 4 * dg * dg + 2 * db * db + da * da;
+    }
+
+    /**
+     * Канал цвета: 0 - синий, 1 - зеленый, 2 - красный, 3 - альфа.
+     */
+    private static int channel(int color, int channel) {
+        return (color >>> (channel * 8)) & 0xff;
+    }
+
+    /**
+     * Ящик медианного сечения: диапазон [from, to) массива order с индексами цветов.
+     */
+    private static class Box {
+        final int from;
+        final int to;
+        final long population;
+        final int widestChannel;
+        final int widestRange;
+
+        Box(int from, int to, int[] colors, int[] counts, int[] order) {
+            this.from = from;
+            this.to = to;
+            int[] min = {255, 255, 255, 255};
+            int[] max = new int[CHANNELS];
+            long population = 0;
+            for (int i = from; i < to; i++) {
+                int color = colors[order[i]];
+                population += counts[order[i]];
+                for (int c = 0; c < CHANNELS; c++) {
+                    int value = channel(color, c);
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+            }
+            int widest = 0;
+            for (int c = 1; c < CHANNELS; c++) {
+                if (max[c] - min[c] > max[widest] - min[widest]) {
+                    widest = c;
+                }
+            }
+            this.population = population;
+            this.widestChannel = widest;
+            this.widestRange = max[widest] - min[widest];
+        }
+
+        long score() {
+            return widestRange * population;
+        }
+
+        /**
+         * Упорядочивает ящик по самому широкому каналу (сортировка подсчетом) и возвращает точку
+         * раздела по медиане населения. Обе половины гарантированно непустые.
+         */
+        int split(int[] colors, int[] counts, int[] order) {
+            int[] buckets = new int[257];
+            for (int i = from; i < to; i++) {
+                buckets[channel(colors[order[i]], widestChannel) + 1]++;
+            }
+            for (int v = 1; v < buckets.length; v++) {
+                buckets[v] += buckets[v - 1];
+            }
+            int[] reordered = new int[to - from];
+            for (int i = from; i < to; i++) {
+                reordered[buckets[channel(colors[order[i]], widestChannel)]++] = order[i];
+            }
+            System.arraycopy(reordered, 0, order, from, reordered.length);
+
+            long half = population / 2;
+            long accumulated = 0;
+            int split = from + 1;
+            for (int i = from; i < to - 1; i++) {
+                accumulated += counts[order[i]];
+                split = i + 1;
+                if (accumulated >= half) {
+                    break;
+                }
+            }
+            return split;
+        }
+
+        int average(int[] colors, int[] counts, int[] order) {
+            long[] sums = new long[CHANNELS];
+            for (int i = from; i < to; i++) {
+                int color = colors[order[i]];
+                for (int c = 0; c < CHANNELS; c++) {
+                    sums[c] += (long) channel(color, c) * counts[order[i]];
+                }
+            }
+            int result = 0;
+            for (int c = 0; c < CHANNELS; c++) {
+                result |= (int) Math.round((double) sums[c] / population) << (c * 8);
+            }
+            return result;
+        }
+    }
+}
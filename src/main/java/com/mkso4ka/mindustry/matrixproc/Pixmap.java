@@ -1,33 +1,41 @@
 package com.mkso4ka.mindustry.matrixproc;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.Raster;
+import java.awt.image.SinglePixelPackedSampleModel;
 
 /**
- * Вспомогательный класс для представления изображения в виде 2D-массива пикселей.
+ * Вспомогательный класс для представления изображения в виде массива пикселей.
+ * Пиксели хранятся построчно в одном непрерывном массиве: пиксель (x, y) лежит по индексу y * width + x.
  */
 class Pixmap {
     private final int width;
     private final int height;
-    private final int[][] pixels;
+    private final int[] pixels;
 
     public Pixmap(int width, int height) {
         this.width = width;
         this.height = height;
-        this.pixels = new int[width][height];
+        this.pixels = new int[width * height];
     }
 
     public int get(int x, int y) {
-        return pixels[x][y];
+        return pixels[y * width + x];
     }
 
     public void set(int x, int y, int color) {
-        pixels[x][y] = color;
+        pixels[y * width + x] = color;
     }
 
     public void each(PixelFunction func) {
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                func.apply(x, y, pixels[x][y]);
+        for (int y = 0; y < height; y++) {
+            int rowStart = y * width;
+            for (int x = 0; x < width; x++) {
+                func.apply(x, y, pixels[rowStart + x]);
             }
         }
     }
@@ -40,13 +48,101 @@ class Pixmap {
         return height;
     }
 
+    /**
+     * Шаг между строками в массиве {@link #getPixels()}.
+     */
+    public int getStride() {
+        return width;
+    }
+
+    /**
+     * Прямой доступ к массиву пикселей (без копирования) для горячих циклов.
+     */
+    int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Импортирует изображение. Для стандартных sRGB-форматов данные копируются прямо из растра
+     * (с учетом смещения подызображения от getSubimage), для остальных - один вызов getRGB на строку.
+     */
     public static Pixmap fromBufferedImage(BufferedImage image) {
         Pixmap pixmap = new Pixmap(image.getWidth(), image.getHeight());
-        for (int x = 0; x < image.getWidth(); x++) {
-            for (int y = 0; y < image.getHeight(); y++) {
-                pixmap.set(x, y, image.getRGB(x, y));
+        readRows(image, 0, pixmap.height, pixmap.pixels, 0);
+        return pixmap;
+    }
+
+    /**
+     * Импортирует строки [fromY, fromY + rowCount) в out построчно с шагом image.getWidth(),
+     * тем же способом, что и {@link #fromBufferedImage}. Нужен тем, кто читает исходник по строкам,
+     * не копируя его целиком.
+     */
+    static void readRows(BufferedImage image, int fromY, int rowCount, int[] out, int outOffset) {
+        Raster raster = image.getRaster();
+        DataBuffer buffer = raster.getDataBuffer();
+        int width = image.getWidth();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_ARGB:
+                copyPackedInts(raster, (DataBufferInt) buffer, width, fromY, rowCount, out, outOffset, 0);
+                break;
+            case BufferedImage.TYPE_INT_RGB:
+                copyPackedInts(raster, (DataBufferInt) buffer, width, fromY, rowCount, out, outOffset, 0xff000000);
+                break;
+            case BufferedImage.TYPE_4BYTE_ABGR:
+            case BufferedImage.TYPE_3BYTE_BGR:
+                copyInterleavedBytes(raster, (DataBufferByte) buffer, width, fromY, rowCount, out, outOffset);
+                break;
+            default:
+                for (int y = 0; y < rowCount; y++) {
+                    image.getRGB(0, fromY + y, width, 1, out, outOffset + y * width, width);
+                }
+        }
+    }
+
+    private static void copyPackedInts(Raster raster, DataBufferInt buffer, int width, int fromY, int rowCount,
+                                       int[] out, int outOffset, int alphaMask) {
+        SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+        int[] data = buffer.getData();
+        int scanline = model.getScanlineStride();
+        int base = buffer.getOffset() + model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY());
+        for (int y = 0; y < rowCount; y++) {
+            int src = base + (fromY + y) * scanline;
+            int dst = outOffset + y * width;
+            if (alphaMask == 0) {
+                System.arraycopy(data, src, out, dst, width);
+            } else {
+                for (int x = 0; x < width; x++) {
+                    out[dst + x] = data[src + x] | alphaMask;
+                }
+            }
+        }
+    }
+
+    private static void copyInterleavedBytes(Raster raster, DataBufferByte buffer, int width, int fromY, int rowCount,
+                                             int[] out, int outOffset) {
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        byte[] data = buffer.getData();
+        int scanline = model.getScanlineStride();
+        int pixelStride = model.getPixelStride();
+        int[] bandOffsets = model.getBandOffsets();
+        boolean hasAlpha = bandOffsets.length == 4;
+        // getOffset уже включает смещение нулевого канала, поэтому вычитаем его обратно.
+        int base = buffer.getOffset() + model.getOffset(-raster.getSampleModelTranslateX(), -raster.getSampleModelTranslateY()) - bandOffsets[0];
+        // Порядок каналов берем из модели: для ABGR/BGR каналы R, G, B, (A) лежат по своим смещениям.
+        int r = bandOffsets[0];
+        int g = bandOffsets[1];
+        int b = bandOffsets[2];
+        int a = hasAlpha ? bandOffsets[3] : 0;
+        for (int y = 0; y < rowCount; y++) {
+            int src = base + (fromY + y) * scanline;
+            int dst = outOffset + y * width;
+            for (int x = 0; x < width; x++, src += pixelStride) {
+                int alpha = hasAlpha ? data[src + a] & 0xff : 0xff;
+                out[dst + x] = alpha << 24
+                    | (data[src + r] & 0xff) << 16
+                    | (data[src + g] & 0xff) << 8
+                    | (data[src + b] & 0xff);
             }
         }
-        return pixmap;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,173 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import javax.imageio.ImageIO;
+
+/**
+ * Запись PNG с выбором кодировщика. ImageIO сжимает лучше всех, но медленно; для превью хватает
+ * собственного кодировщика: строки без фильтра или с фильтром Sub, сжатие Deflater с уровнем
+ * BEST_SPEED или вообще без сжатия.
+ */
+class PngWriter {
+    enum Encoder {
+        /** Стандартный кодировщик ImageIO. */
+        IMAGE_IO,
+        /** Фильтр Sub и Deflater.BEST_SPEED: файл немного больше, запись в разы быстрее. */
+        FAST,
+        /** Без сжатия (блоки deflate типа stored): самая быстрая запись, самый большой файл. */
+        STORED
+    }
+
+    private static final byte[] SIGNATURE = {(byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int IDAT_CHUNK_SIZE = 64 * 1024;
+
+    private PngWriter() {}
+
+    public static void write(BufferedImage image, File file, Encoder encoder) throws IOException {
+        if (encoder == Encoder.IMAGE_IO) {
+            ImageIO.write(image, "png", file);
+            return;
+        }
+        boolean alpha = image.getColorModel().hasAlpha();
+        int bytesPerPixel = alpha ? 4 : 3;
+        int width = image.getWidth();
+        int height = image.getHeight();
+        boolean sub = encoder == Encoder.FAST;
+        Deflater deflater = new Deflater(sub ? Deflater.BEST_SPEED : Deflater.NO_COMPRESSION);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), IDAT_CHUNK_SIZE))) {
+            out.write(SIGNATURE);
+            ChunkOutputStream header = new ChunkOutputStream(out, "IHDR", 13);
+            DataOutputStream headerData = new DataOutputStream(header);
+            headerData.writeInt(width);
+            headerData.writeInt(height);
+            headerData.writeByte(8);
+            headerData.writeByte(alpha ? 6 : 2);
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+            headerData.writeByte(0);
+            header.close();
+
+            ChunkOutputStream idat = new ChunkOutputStream(out, "IDAT", IDAT_CHUNK_SIZE);
+            DeflaterOutputStream compressed = new DeflaterOutputStream(idat, deflater, IDAT_CHUNK_SIZE);
+            int[] argb = directPixels(image);
+            int[] row = argb != null ? null : new int[width];
+            byte[] line = new byte[1 + width * bytesPerPixel];
+            line[0] = (byte) (sub ? 1 : 0);
+            for (int y = 0; y < height; y++) {
+                int base = 0;
+                if (argb != null) {
+                    base = y * width;
+                } else {
+                    image.getRGB(0, y, width, 1, row, 0, width);
+                }
+                int[] source = argb != null ? argb : row;
+                int position = 1;
+                for (int x = 0; x < width; x++) {
+                    int pixel = source[base + x];
+                    line[position++] = (byte) (pixel >>> 16);
+                    line[position++] = (byte) (pixel >>> 8);
+                    line[position++] = (byte) pixel;
+                    if (alpha) {
+                        line[position++] = (byte) (pixel >>> 24);
+                    }
+                }
+                if (sub) {
+                    // Sub: каждый байт минус соответствующий байт левого пикселя (с конца, чтобы не портить соседей).
+                    for (int i = line.length - 1; i > bytesPerPixel; i--) {
+                        line[i] -= line[i - bytesPerPixel];
+                    }
+                }
+                compressed.write(line);
+            }
+            compressed.finish();
+            idat.close();
+            new ChunkOutputStream(out, "IEND", 0).close();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * Массив пикселей растра, если его можно читать напрямую (TYPE_INT_RGB / TYPE_INT_ARGB без смещений), иначе null.
+     */
+    private static int[] directPixels(BufferedImage image) {
+        int type = image.getType();
+        if ((type != BufferedImage.TYPE_INT_RGB && type != BufferedImage.TYPE_INT_ARGB)
+            || !(image.getRaster().getDataBuffer() instanceof DataBufferInt)
+            || image.getRaster().getParent() != null) {
+            return null;
+        }
+        return ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    /**
+     * Копит данные и пишет их чанками PNG (длина, тип, данные, CRC) по заполнении буфера и при закрытии.
+     * Закрытие не закрывает нижележащий поток. Пустой чанк пишется, только если в него ничего не писали вовсе.
+     */
+    private static class ChunkOutputStream extends OutputStream {
+        private final DataOutputStream out;
+        private final byte[] type;
+        private final byte[] buffer;
+        private final CRC32 crc = new CRC32();
+        private int size;
+        private boolean written;
+
+        ChunkOutputStream(DataOutputStream out, String type, int capacity) {
+            this.out = out;
+            this.type = type.getBytes(StandardCharsets.US_ASCII);
+            this.buffer = new byte[Math.max(1, capacity)];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (size == buffer.length) {
+                flushChunk();
+            }
+            buffer[size++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (size == buffer.length) {
+                    flushChunk();
+                }
+                int count = Math.min(length, buffer.length - size);
+                System.arraycopy(data, offset, buffer, size, count);
+                size += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            out.writeInt(size);
+            out.write(type);
+            out.write(buffer, 0, size);
+            crc.reset();
+            crc.update(type);
+            crc.update(buffer, 0, size);
+            out.writeInt((int) crc.getValue());
+            size = 0;
+            written = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (size > 0 || !written) {
+                flushChunk();
+            }
+        }
+    }
+}
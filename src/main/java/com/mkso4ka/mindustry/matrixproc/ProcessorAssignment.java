@@ -0,0 +1,410 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Распределение мест для процессоров между дисплеями с учетом их потребностей.
+ * <p>
+ * Место может обслуживать только дисплеи в радиусе досягаемости. Места с одинаковым набором
+ * досягаемых дисплеев объединяются в группу, и задача решается как поток минимальной стоимости
+ * в сети "исток -> группа -> дисплей -> сток": пропускная способность группы - число ее мест,
+ * дисплея - число требуемых процессоров, стоимость ребра группа -> дисплей - среднее расстояние
+ * от мест группы до центра дисплея. Поток максимален (размещается как можно больше процессоров),
+ * а среди максимальных - самый дешевый. Внутри группы места раздаются дисплеям от ближайших.
+ * <p>
+ * Поток ищется прямо-двойственным методом: Дейкстра с потенциалами находит кратчайшие расстояния,
+ * затем по ребрам с нулевой приведенной стоимостью пускается блокирующий поток (как в алгоритме Диница).
+ * Стоимости - небольшие целые числа, поэтому фаз мало.
+ */
+class ProcessorAssignment {
+    private static final long INF = Long.MAX_VALUE / 4;
+
+    private ProcessorAssignment() {}
+
+    /**
+     * @param candidateCount Число мест.
+     * @param reachStart Для места c досягаемые дисплеи лежат в reachDisplays[reachStart[c] .. reachStart[c + 1]),
+     *                   по возрастанию id.
+     * @param reachDistanceSq Квадрат расстояния от места до центра соответствующего дисплея.
+     * @param required Сколько процессоров нужно каждому дисплею.
+     * @return Для каждого места - id дисплея или -1, если место не понадобилось.
+     */
+    public static int[] solve(int candidateCount, int[] reachStart, int[] reachDisplays, double[] reachDistanceSq, int[] required) {
+        // 1. Группы мест с одинаковым набором досягаемых дисплеев (только тех, кому что-то нужно).
+        int[] groupOf = new int[candidateCount];
+        Map<String, Integer> groupIds = new HashMap<>();
+        int[] groupFirst = new int[Math.max(1, candidateCount)];
+        int[] groupSize = new int[Math.max(1, candidateCount)];
+        int groupCount = 0;
+        StringBuilder signature = new StringBuilder();
+        for (int c = 0; c < candidateCount; c++) {
+            signature.setLength(0);
+            for (int k = reachStart[c]; k < reachStart[c + 1]; k++) {
+                if (required[reachDisplays[k]] > 0) {
+                    signature.append(reachDisplays[k]).append(',');
+                }
+            }
+            if (signature.length() == 0) {
+                groupOf[c] = -1;
+                continue;
+            }
+            Integer group = groupIds.get(signature.toString());
+            if (group == null) {
+                group = groupCount++;
+                groupIds.put(signature.toString(), group);
+                groupFirst[group] = c;
+            }
+            groupOf[c] = group;
+            groupSize[group]++;
+        }
+
+        // 2. Сеть: 0 - исток, 1 - сток, затем группы, затем дисплеи.
+        int displayCount = required.length;
+        int displayBase = 2 + groupCount;
+        FlowNetwork network = new FlowNetwork(displayBase + displayCount);
+        double[] costSum = new double[displayCount];
+        // Ребра группа -> дисплей группы g: groupEdge[g], groupEdge[g] + 2, ... (всего groupPairs[g]).
+        int[] groupEdge = new int[groupCount];
+        int[] groupPairs = new int[groupCount];
+        int[] edgeDisplay = new int[reachDisplays.length];
+        int pairCount = 0;
+        int[] membersStart = membersStart(groupCount, groupSize);
+        int[] members = membersList(groupOf, groupCount, membersStart);
+        for (int g = 0; g < groupCount; g++) {
+            network.addEdge(0, 2 + g, groupSize[g], 0);
+            int first = groupFirst[g];
+            groupEdge[g] = network.edgeCount();
+            for (int k = reachStart[first]; k < reachStart[first + 1]; k++) {
+                int display = reachDisplays[k];
+                if (required[display] > 0) {
+                    costSum[display] = 0;
+                }
+            }
+            for (int i = membersStart[g]; i < membersStart[g + 1]; i++) {
+                int c = members[i];
+                for (int k = reachStart[c]; k < reachStart[c + 1]; k++) {
+                    if (required[reachDisplays[k]] > 0) {
+                        costSum[reachDisplays[k]] += Math.sqrt(reachDistanceSq[k]);
+                    }
+                }
+            }
+            for (int k = reachStart[first]; k < reachStart[first + 1]; k++) {
+                int display = reachDisplays[k];
+                if (required[display] > 0) {
+                    // Стоимость - среднее расстояние в полуклетках.
+                    int cost = (int) Math.round(costSum[display] / groupSize[g] * 2);
+                    network.addEdge(2 + g, displayBase + display, groupSize[g], cost);
+                    edgeDisplay[pairCount++] = display;
+                    groupPairs[g]++;
+                }
+            }
+        }
+        for (int d = 0; d < displayCount; d++) {
+            if (required[d] > 0) {
+                network.addEdge(displayBase + d, 1, required[d], 0);
+            }
+        }
+        network.minCostMaxFlow(0, 1);
+
+        // 3. Сколько мест каждая группа отдает каждому дисплею - и раздача самих мест от ближайших.
+        int[] result = new int[candidateCount];
+        Arrays.fill(result, -1);
+        int[] quota = new int[displayCount];
+        int pair = 0;
+        for (int g = 0; g < groupCount; g++) {
+            int pairsInGroup = groupPairs[g];
+            for (int p = 0; p < pairsInGroup; p++) {
+                quota[edgeDisplay[pair + p]] = network.flowOn(groupEdge[g] + 2 * p);
+            }
+            distributeGroup(members, membersStart[g], membersStart[g + 1], reachStart, reachDisplays, reachDistanceSq, quota, result);
+            for (int p = 0; p < pairsInGroup; p++) {
+                quota[edgeDisplay[pair + p]] = 0;
+            }
+            pair += pairsInGroup;
+        }
+        return result;
+    }
+
+    /**
+     * Раздает места группы дисплеям по квотам: пары (место, дисплей) берутся по возрастанию расстояния.
+     */
+    private static void distributeGroup(int[] members, int from, int to, int[] reachStart, int[] reachDisplays,
+                                        double[] reachDistanceSq, int[] quota, int[] result) {
+        int pairs = 0;
+        for (int i = from; i < to; i++) {
+            int c = members[i];
+            for (int k = reachStart[c]; k < reachStart[c + 1]; k++) {
+                if (quota[reachDisplays[k]] > 0) {
+                    pairs++;
+                }
+            }
+        }
+        if (pairs == 0) {
+            return;
+        }
+        long[] order = new long[pairs];
+        double[] distance = new double[pairs];
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            int c = members[i];
+            for (int k = reachStart[c]; k < reachStart[c + 1]; k++) {
+                if (quota[reachDisplays[k]] > 0) {
+                    distance[n] = reachDistanceSq[k];
+                    order[n] = ((long) c << 32) | reachDisplays[k];
+                    n++;
+                }
+            }
+        }
+        Integer[] sorted = new Integer[pairs];
+        for (int i = 0; i < pairs; i++) {
+            sorted[i] = i;
+        }
+        // При равных расстояниях - по порядку мест и дисплеев, чтобы результат был детерминированным.
+        Arrays.sort(sorted, (a, b) -> distance[a] != distance[b] ? Double.compare(distance[a], distance[b]) : Long.compare(order[a], order[b]));
+        for (int index : sorted) {
+            int c = (int) (order[index] >>> 32);
+            int display = (int) order[index];
+            if (result[c] < 0 && quota[display] > 0) {
+                result[c] = display;
+                quota[display]--;
+            }
+        }
+    }
+
+    private static int[] membersStart(int groupCount, int[] groupSize) {
+        int[] start = new int[groupCount + 1];
+        for (int g = 0; g < groupCount; g++) {
+            start[g + 1] = start[g] + groupSize[g];
+        }
+        return start;
+    }
+
+    private static int[] membersList(int[] groupOf, int groupCount, int[] start) {
+        int[] fill = Arrays.copyOf(start, groupCount);
+        int[] members = new int[start[groupCount]];
+        for (int c = 0; c < groupOf.length; c++) {
+            if (groupOf[c] >= 0) {
+                members[fill[groupOf[c]]++] = c;
+            }
+        }
+        return members;
+    }
+
+    /**
+     * Сеть на массивах: ребро e и обратное к нему e ^ 1 хранятся рядом.
+     */
+    private static class FlowNetwork {
+        private final int nodeCount;
+        private final int[] head;
+        private int[] next = new int[16];
+        private int[] to = new int[16];
+        private int[] capacity = new int[16];
+        private int[] originalCapacity = new int[16];
+        private int[] cost = new int[16];
+        private int edges;
+
+        FlowNetwork(int nodeCount) {
+            this.nodeCount = nodeCount;
+            this.head = new int[nodeCount];
+            Arrays.fill(head, -1);
+        }
+
+        int edgeCount() {
+            return edges;
+        }
+
+        void addEdge(int from, int target, int cap, int edgeCost) {
+            link(from, target, cap, edgeCost);
+            link(target, from, 0, -edgeCost);
+        }
+
+        private void link(int from, int target, int cap, int edgeCost) {
+            if (edges == to.length) {
+                next = Arrays.copyOf(next, edges * 2);
+                to = Arrays.copyOf(to, edges * 2);
+                capacity = Arrays.copyOf(capacity, edges * 2);
+                originalCapacity = Arrays.copyOf(originalCapacity, edges * 2);
+                cost = Arrays.copyOf(cost, edges * 2);
+            }
+            to[edges] = target;
+            capacity[edges] = cap;
+            originalCapacity[edges] = cap;
+            cost[edges] = edgeCost;
+            next[edges] = head[from];
+            head[from] = edges++;
+        }
+
+        int flowOn(int edge) {
+            return originalCapacity[edge] - capacity[edge];
+        }
+
+        void minCostMaxFlow(int source, int sink) {
+            long[] potential = new long[nodeCount];
+            long[] distance = new long[nodeCount];
+            int[] level = new int[nodeCount];
+            int[] currentEdge = new int[nodeCount];
+            int[] queue = new int[nodeCount];
+            int[] pathEdges = new int[nodeCount];
+            while (true) {
+                // Дейкстра по приведенным стоимостям (они неотрицательны благодаря потенциалам).
+                shortestPaths(source, sink, potential, distance);
+                if (distance[sink] >= INF) {
+                    return;
+                }
+                long limit = distance[sink];
+                for (int v = 0; v < nodeCount; v++) {
+                    potential[v] += Math.min(distance[v], limit);
+                }
+                // Блокирующие потоки по допустимым ребрам (остаток > 0, приведенная стоимость 0).
+                while (buildLevels(source, sink, potential, level, queue)) {
+                    System.arraycopy(head, 0, currentEdge, 0, nodeCount);
+                    while (augment(source, sink, potential, level, currentEdge, pathEdges)) {
+                        // Каждый вызов проталкивает поток по одному пути.
+                    }
+                }
+            }
+        }
+
+        private boolean admissible(int edge, int from, long[] potential) {
+            return capacity[edge] > 0 && cost[edge] + potential[from] - potential[to[edge]] == 0;
+        }
+
+        private void shortestPaths(int source, int sink, long[] potential, long[] distance) {
+            Arrays.fill(distance, INF);
+            distance[source] = 0;
+            // Куча на long: старшие биты - расстояние, младшие 20 - вершина.
+            long[] heap = new long[Math.max(16, edges + 1)];
+            int size = 0;
+            heap[size++] = (long) source;
+            while (size > 0) {
+                long top = heap[0];
+                heap[0] = heap[--size];
+                siftDown(heap, size);
+                int u = (int) (top & 0xfffff);
+                long d = top >>> 20;
+                if (d != distance[u]) {
+                    continue;
+                }
+                if (u == sink) {
+                    // Остальные вершины не ближе стока, их потенциалы все равно обрезаются по distance[sink].
+                    return;
+                }
+                for (int e = head[u]; e >= 0; e = next[e]) {
+                    if (capacity[e] <= 0) {
+                        continue;
+                    }
+                    int v = to[e];
+                    long candidate = d + cost[e] + potential[u] - potential[v];
+                    if (candidate < distance[v]) {
+                        distance[v] = candidate;
+                        if (size == heap.length) {
+                            heap = Arrays.copyOf(heap, size * 2);
+                        }
+                        heap[size] = (candidate << 20) | v;
+                        siftUp(heap, size++);
+                    }
+                }
+            }
+        }
+
+        private boolean buildLevels(int source, int sink, long[] potential, int[] level, int[] queue) {
+            Arrays.fill(level, -1);
+            level[source] = 0;
+            int headIndex = 0;
+            int tail = 0;
+            queue[tail++] = source;
+            while (headIndex < tail) {
+                int u = queue[headIndex++];
+                if (level[sink] >= 0 && level[u] >= level[sink]) {
+                    // Вершины глубже стока в блокирующий поток не попадут.
+                    break;
+                }
+                for (int e = head[u]; e >= 0; e = next[e]) {
+                    int v = to[e];
+                    if (level[v] < 0 && admissible(e, u, potential)) {
+                        level[v] = level[u] + 1;
+                        queue[tail++] = v;
+                    }
+                }
+            }
+            return level[sink] >= 0;
+        }
+
+        /**
+         * Ищет один путь от истока к стоку по уровням (без рекурсии) и проталкивает по нему поток.
+         */
+        private boolean augment(int source, int sink, long[] potential, int[] level, int[] currentEdge, int[] pathEdges) {
+            int depth = 0;
+            int u = source;
+            while (true) {
+                if (u == sink) {
+                    int bottleneck = Integer.MAX_VALUE;
+                    for (int i = 0; i < depth; i++) {
+                        bottleneck = Math.min(bottleneck, capacity[pathEdges[i]]);
+                    }
+                    for (int i = 0; i < depth; i++) {
+                        capacity[pathEdges[i]] -= bottleneck;
+                        capacity[pathEdges[i] ^ 1] += bottleneck;
+                    }
+                    return true;
+                }
+                int e = currentEdge[u];
+                while (e >= 0 && !(level[to[e]] == level[u] + 1 && admissible(e, u, potential))) {
+                    e = next[e];
+                }
+                currentEdge[u] = e;
+                if (e >= 0) {
+                    pathEdges[depth++] = e;
+                    u = to[e];
+                } else {
+                    // Тупик: вершина больше не участвует в этой фазе, отступаем на шаг назад.
+                    level[u] = -1;
+                    if (depth == 0) {
+                        return false;
+                    }
+                    int back = pathEdges[--depth];
+                    u = to[back ^ 1];
+                    currentEdge[u] = next[currentEdge[u]];
+                }
+            }
+        }
+
+        private static void siftUp(long[] heap, int index) {
+            long value = heap[index];
+            while (index > 0) {
+                int parent = (index - 1) >>> 1;
+                if (heap[parent] <= value) {
+                    break;
+                }
+                heap[index] = heap[parent];
+                index = parent;
+            }
+            heap[index] = value;
+        }
+
+        private static void siftDown(long[] heap, int size) {
+            if (size == 0) {
+                return;
+            }
+            long value = heap[0];
+            int index = 0;
+            while (true) {
+                int child = 2 * index + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && heap[child + 1] < heap[child]) {
+                    child++;
+                }
+                if (heap[child] >= value) {
+                    break;
+                }
+                heap[index] = heap[child];
+                index = child;
+            }
+            heap[index] = value;
+        }
+    }
+}
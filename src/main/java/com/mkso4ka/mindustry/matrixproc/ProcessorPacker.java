@@ -0,0 +1,193 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Раскладка команд дисплея по процессорам. Группа цвета (draw color и ее draw rect) - предмет упаковки
+ * в контейнеры по capacity команд: каждый процессор выполняет код сам по себе, поэтому часть группы
+ * в процессоре обязана начинаться со своего draw color, и каждое разрезание группы стоит одну команду.
+ * <p>
+ * Для числа процессоров, начиная с нижней оценки ceil(команд / capacity), пробуется упаковка:
+ * <ol>
+ *   <li>группы больше процессора заполняют пустые процессоры целиком, остаток становится обычной группой;</li>
+ *   <li>группы по убыванию размера кладутся целиком в процессор с наименьшим подходящим остатком места;</li>
+ *   <li>не поместившиеся целиком группы режутся по процессорам с наибольшим остатком места.</li>
+ * </ol>
+ * Первое число процессоров, при котором все поместилось, и есть результат. Фон послойного разбиения
+ * (draw clear) всегда идет первым в первом процессоре, а в этом процессоре оставлено место под stop.
+ * <p>
+ * Внутри процессора части групп идут по убыванию площади (прямоугольники в группах уже упорядочены так
+ * же), чтобы первые сбросы буфера рисования закрашивали большую часть дисплея.
+ */
+class ProcessorPacker {
+    /** Фон послойного разбиения стоит две инструкции: draw clear и stop после drawflush. */
+    private static final int BACKGROUND_COMMANDS = 2;
+
+    private ProcessorPacker() {}
+
+    /**
+     * Часть группы цвета в одном процессоре: draw color и прямоугольники либо одна команда draw clear.
+     */
+    static class Piece {
+        final int color;
+        final List<Rect> rects;
+        final boolean clear;
+
+        Piece(int color, List<Rect> rects, boolean clear) {
+            this.color = color;
+            this.rects = rects;
+            this.clear = clear;
+        }
+
+        int commands() {
+            return clear ? 1 : 1 + rects.size();
+        }
+
+        long area() {
+            long area = 0;
+            for (Rect rect : rects) {
+                area += (long) rect.w * rect.h;
+            }
+            return area;
+        }
+    }
+
+    /**
+     * Процессор: части групп в порядке записи.
+     */
+    static class Bin {
+        final List<Piece> pieces = new ArrayList<>();
+        /** Сколько команд помещается (без drawflush и stop). */
+        final int capacity;
+        int used;
+
+        Bin(int capacity) {
+            this.capacity = capacity;
+        }
+
+        int free() {
+            return capacity - used;
+        }
+
+        void add(Piece piece) {
+            pieces.add(piece);
+            used += piece.commands();
+        }
+    }
+
+    /**
+     * @param groups Разбиение дисплея: цвет - прямоугольники.
+     * @param capacity Сколько команд помещается в процессор (без завершающего drawflush), не меньше 3.
+     * @param clearFirst Первая группа - фон, который записывается одной командой draw clear (ее прямоугольники не рисуются).
+     * @return Непустые процессоры в порядке записи.
+     */
+    static List<Bin> pack(Map<Integer, List<Rect>> groups, int capacity, boolean clearFirst) {
+        if (capacity < 3) {
+            throw new IllegalArgumentException("В процессор должно помещаться хотя бы 3 команды: " + capacity);
+        }
+        Piece background = null;
+        List<Piece> items = new ArrayList<>();
+        long total = 0;
+        for (Map.Entry<Integer, List<Rect>> entry : groups.entrySet()) {
+            if (clearFirst && background == null) {
+                background = new Piece(entry.getKey(), List.of(), true);
+                total += BACKGROUND_COMMANDS;
+            } else if (!entry.getValue().isEmpty()) {
+                Piece item = new Piece(entry.getKey(), entry.getValue(), false);
+                items.add(item);
+                total += item.commands();
+            }
+        }
+        if (total == 0) {
+            return new ArrayList<>();
+        }
+        items.sort((a, b) -> Integer.compare(b.commands(), a.commands()));
+
+        for (int processors = (int) ((total + capacity - 1) / capacity); ; processors++) {
+            List<Bin> bins = tryPack(items, background, capacity, processors);
+            if (bins != null) {
+                bins.removeIf(bin -> bin.pieces.isEmpty());
+                for (Bin bin : bins) {
+                    bin.pieces.sort((a, b) -> a.clear != b.clear ? Boolean.compare(b.clear, a.clear)
+                        : Long.compare(b.area(), a.area()));
+                }
+                return bins;
+            }
+        }
+    }
+
+    /**
+     * Упаковка в заданное число процессоров или null, если не помещается.
+     * @param items Группы по убыванию числа команд.
+     */
+    private static List<Bin> tryPack(List<Piece> items, Piece background, int capacity, int processors) {
+        List<Bin> bins = new ArrayList<>(processors);
+        for (int i = 0; i < processors; i++) {
+            bins.add(new Bin(i == 0 && background != null ? capacity - 1 : capacity));
+        }
+        if (background != null) {
+            bins.get(0).add(background);
+        }
+
+        // 1. Группы больше процессора занимают пустые процессоры целиком.
+        List<Piece> whole = new ArrayList<>(items.size());
+        for (Piece item : items) {
+            List<Rect> remaining = item.rects;
+            while (1 + remaining.size() > capacity) {
+                Bin empty = null;
+                for (Bin bin : bins) {
+                    if (bin.used == 0) {
+                        empty = bin;
+                        break;
+                    }
+                }
+                if (empty == null) {
+                    return null;
+                }
+                int count = empty.capacity - 1;
+                empty.add(new Piece(item.color, remaining.subList(0, count), false));
+                remaining = remaining.subList(count, remaining.size());
+            }
+            whole.add(remaining == item.rects ? item : new Piece(item.color, remaining, false));
+        }
+        whole.sort((a, b) -> Integer.compare(b.commands(), a.commands()));
+
+        // 2. Целиком - в процессор с наименьшим подходящим остатком.
+        List<Piece> leftover = new ArrayList<>();
+        for (Piece item : whole) {
+            Bin target = null;
+            for (Bin bin : bins) {
+                if (bin.free() >= item.commands() && (target == null || bin.free() < target.free())) {
+                    target = bin;
+                }
+            }
+            if (target != null) {
+                target.add(item);
+            } else {
+                leftover.add(item);
+            }
+        }
+
+        // 3. Остальное режется по самым свободным процессорам; каждая часть - со своим draw color.
+        for (Piece item : leftover) {
+            List<Rect> remaining = item.rects;
+            while (!remaining.isEmpty()) {
+                Bin target = null;
+                for (Bin bin : bins) {
+                    if (target == null || bin.free() > target.free()) {
+                        target = bin;
+                    }
+                }
+                if (target.free() < 2) {
+                    return null;
+                }
+                int count = Math.min(target.free() - 1, remaining.size());
+                target.add(new Piece(item.color, remaining.subList(0, count), false));
+                remaining = remaining.subList(count, remaining.size());
+            }
+        }
+        return bins;
+    }
+}
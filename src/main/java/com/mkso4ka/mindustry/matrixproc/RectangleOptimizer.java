@@ -0,0 +1,324 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Улучшение готового разбиения с ограничением по времени ("anytime"): каждый прямоугольник - лишняя
+ * команда draw rect, а жадный выбор самого большого прямоугольника нередко дает их больше, чем нужно.
+ * <p>
+ * Как и в ImageProcessor, каждая одноцветная связная область разбивается независимо. Для областей,
+ * где жадный поиск дал больше двух прямоугольников, выполняется лучевой поиск (beam search) по порядку
+ * разрезов: первый свободный пиксель в порядке обхода обязан быть левым верхним углом очередного
+ * прямоугольника, поэтому ветвление - выбор одного из максимальных прямоугольников с этим углом
+ * ("лесенка" по высоте). Все состояния на глубине d содержат ровно d прямоугольников, и луч оставляет
+ * ширину лучших по покрытой площади. Обход повторяется для восьми ориентаций области (отражения и
+ * транспонирование) с удвоением ширины луча от раунда к раунду; поиск ищет только решения строго
+ * короче лучшего найденного. Каждое найденное решение дополнительно проходит слияние соседних
+ * прямоугольников с общей стороной.
+ * <p>
+ * Раунды идут по всем областям параллельно, поэтому сначала все области получают дешевые улучшения,
+ * и лишь затем время тратится на широкий луч. При истечении срока поиск прерывается, и возвращается
+ * лучшее разбиение на этот момент - никогда не хуже исходного. Результат зависит от скорости машины,
+ * поэтому при включенном оптимизаторе он может отличаться от запуска к запуску (но всегда точный).
+ */
+class RectangleOptimizer {
+    /** Наибольшая ширина луча: дальше выигрыш редок, а раунд длится слишком долго. */
+    private static final int MAX_BEAM_WIDTH = 256;
+    private static final int ORIENTATIONS = 8;
+
+    private RectangleOptimizer() {}
+
+    /**
+     * Улучшает разбиение фрагмента, пока не истечет срок.
+     * @param initial Точное разбиение пикселей pixmap (например, из groupOptimal); не изменяется.
+     * @param budgetMillis Время на поиск в миллисекундах.
+     * @return Разбиение с не большим числом прямоугольников, в том же порядке, что и у groupOptimal.
+     */
+    static Map<Integer, List<Rect>> optimize(Pixmap pixmap, Map<Integer, List<Rect>> initial, long budgetMillis,
+                                             ForkJoinPool pool) {
+        long deadline = System.nanoTime() + budgetMillis * 1_000_000L;
+        ConnectedComponents components = ConnectedComponents.label(pixmap);
+        int width = pixmap.getWidth();
+
+        List<List<Rect>> perComponent = new ArrayList<>(components.count);
+        for (int i = 0; i < components.count; i++) {
+            perComponent.add(new ArrayList<>());
+        }
+        for (List<Rect> rects : initial.values()) {
+            for (Rect rect : rects) {
+                perComponent.get(components.labels[rect.y * width + rect.x]).add(rect);
+            }
+        }
+
+        List<ComponentSearch> searches = new ArrayList<>();
+        for (int label = 0; label < components.count; label++) {
+            List<Rect> rects = perComponent.get(label);
+            if (rects.size() > 2) {
+                ComponentSearch search = new ComponentSearch(components, width, label, rects);
+                perComponent.set(label, search.best);
+                searches.add(search);
+            }
+        }
+        // Сначала области с наибольшим числом прямоугольников - в них больше всего можно выиграть.
+        searches.sort((a, b) -> Integer.compare(b.best.size(), a.best.size()));
+
+        for (int beamWidth = 1; beamWidth <= MAX_BEAM_WIDTH && !searches.isEmpty() && System.nanoTime() < deadline; beamWidth *= 2) {
+            final int round = beamWidth;
+            pool.submit(() -> IntStream.range(0, searches.size()).parallel()
+                .forEach(i -> searches.get(i).run(round, deadline))).join();
+            for (ComponentSearch search : searches) {
+                perComponent.set(search.label, search.best);
+            }
+            searches.removeIf(search -> search.best.size() <= 2);
+        }
+
+        List<Rect> all = new ArrayList<>();
+        perComponent.forEach(all::addAll);
+        all.sort((a, b) -> a.w * a.h != b.w * b.h
+            ? Integer.compare(b.w * b.h, a.w * a.h)
+            : a.y != b.y ? Integer.compare(a.y, b.y) : Integer.compare(a.x, b.x));
+        Map<Integer, List<Rect>> out = new HashMap<>();
+        for (Rect rect : all) {
+            out.computeIfAbsent(pixmap.get(rect.x, rect.y), k -> new ArrayList<>()).add(rect);
+        }
+        return out;
+    }
+
+    /**
+     * Сливает пары прямоугольников с общей стороной целиком, пока такие пары есть.
+     * Прямоугольники одной области и одного цвета, поэтому слияние сохраняет точность разбиения.
+     */
+    static List<Rect> mergeAdjacent(List<Rect> rects) {
+        List<Rect> current = new ArrayList<>(rects);
+        boolean merged = true;
+        while (merged) {
+            merged = mergePass(current, true) | mergePass(current, false);
+        }
+        return current;
+    }
+
+    /**
+     * Один проход слияния: по вертикали (одинаковые x и w, один под другим) или по горизонтали.
+     */
+    private static boolean mergePass(List<Rect> rects, boolean vertical) {
+        // Ключ - линия стыка и положение стороны на ней: нижний край и x-диапазон (или правый край и y-диапазон).
+        Map<Long, Rect> byEdge = new HashMap<>();
+        for (Rect rect : rects) {
+            byEdge.put(vertical ? edgeKey(rect.y + rect.h, rect.x, rect.w) : edgeKey(rect.x + rect.w, rect.y, rect.h), rect);
+        }
+        Set<Rect> removed = new HashSet<>();
+        for (Rect rect : rects) {
+            if (removed.contains(rect)) {
+                continue;
+            }
+            long key = vertical ? edgeKey(rect.y, rect.x, rect.w) : edgeKey(rect.x, rect.y, rect.h);
+            Rect before = byEdge.get(key);
+            if (before == null || before == rect || removed.contains(before)) {
+                continue;
+            }
+            // before лежит прямо над (слева от) rect: растягиваем before и убираем rect.
+            byEdge.remove(key);
+            if (vertical) {
+                before.h += rect.h;
+                byEdge.put(edgeKey(before.y + before.h, before.x, before.w), before);
+            } else {
+                before.w += rect.w;
+                byEdge.put(edgeKey(before.x + before.w, before.y, before.h), before);
+            }
+            removed.add(rect);
+        }
+        rects.removeAll(removed);
+        return !removed.isEmpty();
+    }
+
+    private static long edgeKey(int line, int start, int length) {
+        return ((long) line << 42) | ((long) start << 21) | length;
+    }
+
+    /**
+     * Поиск для одной области. Маска окна области строится заново для каждой ориентации;
+     * лучшее разбиение хранится в координатах всего изображения.
+     */
+    private static class ComponentSearch {
+        final int label;
+        private final int originX;
+        private final int originY;
+        private final int boundsWidth;
+        private final int boundsHeight;
+        private final int size;
+        /** Пиксели области в окне, индекс y * boundsWidth + x. */
+        private final BitSet inside;
+        /** Лучшее разбиение на данный момент; заменяется целиком и читается только между раундами. */
+        List<Rect> best;
+
+        ComponentSearch(ConnectedComponents components, int labelsWidth, int label, List<Rect> initial) {
+            this.label = label;
+            this.originX = components.minX[label];
+            this.originY = components.minY[label];
+            this.boundsWidth = components.boundsWidth(label);
+            this.boundsHeight = components.boundsHeight(label);
+            this.size = components.size[label];
+            this.inside = new BitSet(boundsWidth * boundsHeight);
+            for (int y = 0; y < boundsHeight; y++) {
+                int labelRow = (originY + y) * labelsWidth + originX;
+                for (int x = 0; x < boundsWidth; x++) {
+                    if (components.labels[labelRow + x] == label) {
+                        inside.set(y * boundsWidth + x);
+                    }
+                }
+            }
+            this.best = mergeAdjacent(copy(initial));
+        }
+
+        /**
+         * Один раунд: лучевой поиск заданной ширины во всех ориентациях.
+         */
+        void run(int beamWidth, long deadline) {
+            for (int orientation = 0; orientation < ORIENTATIONS && best.size() > 2; orientation++) {
+                if (System.nanoTime() >= deadline) {
+                    return;
+                }
+                boolean transpose = (orientation & 1) != 0;
+                boolean flipX = (orientation & 2) != 0;
+                boolean flipY = (orientation & 4) != 0;
+                int gridWidth = transpose ? boundsHeight : boundsWidth;
+                int gridHeight = transpose ? boundsWidth : boundsHeight;
+                BitSet grid = new BitSet(gridWidth * gridHeight);
+                for (int i = inside.nextSetBit(0); i >= 0; i = inside.nextSetBit(i + 1)) {
+                    int fx = flipX ? boundsWidth - 1 - i % boundsWidth : i % boundsWidth;
+                    int fy = flipY ? boundsHeight - 1 - i / boundsWidth : i / boundsWidth;
+                    grid.set(transpose ? fx * gridWidth + fy : fy * gridWidth + fx);
+                }
+
+                List<Rect> found = beamSearch(grid, gridWidth, gridHeight, beamWidth, best.size() - 1, deadline);
+                if (found == null) {
+                    continue;
+                }
+                List<Rect> mapped = new ArrayList<>(found.size());
+                for (Rect rect : found) {
+                    int fx = transpose ? rect.y : rect.x;
+                    int fy = transpose ? rect.x : rect.y;
+                    int fw = transpose ? rect.h : rect.w;
+                    int fh = transpose ? rect.w : rect.h;
+                    mapped.add(new Rect(originX + (flipX ? boundsWidth - fx - fw : fx),
+                        originY + (flipY ? boundsHeight - fy - fh : fy), fw, fh));
+                }
+                mapped = mergeAdjacent(mapped);
+                if (mapped.size() < best.size()) {
+                    best = mapped;
+                }
+            }
+        }
+
+        /**
+         * Лучевой поиск разбиения не длиннее limit прямоугольников.
+         * @return Прямоугольники в координатах сетки или null, если такого разбиения не нашлось или истек срок.
+         */
+        private List<Rect> beamSearch(BitSet grid, int gridWidth, int gridHeight, int beamWidth, int limit, long deadline) {
+            List<Node> beam = new ArrayList<>();
+            beam.add(new Node(null, grid, 0, 0, 0, 0, 0, 0));
+            List<Node> candidates = new ArrayList<>();
+            Set<BitSet> seen = new HashSet<>();
+            for (int depth = 1; depth <= limit && !beam.isEmpty(); depth++) {
+                if (System.nanoTime() >= deadline) {
+                    return null;
+                }
+                candidates.clear();
+                for (Node node : beam) {
+                    int first = node.free.nextSetBit(node.scan);
+                    int x0 = first % gridWidth;
+                    int y0 = first / gridWidth;
+                    // "Лесенка": ширина свободного отрезка от угла не растет с высотой; максимальны
+                    // прямоугольники на ступеньках, где следующая строка уже.
+                    int run = gridWidth - x0;
+                    int y = y0;
+                    for (; y < gridHeight; y++) {
+                        int row = y * gridWidth + x0;
+                        int length = 0;
+                        while (length < run && node.free.get(row + length)) {
+                            length++;
+                        }
+                        if (length == 0) {
+                            break;
+                        }
+                        if (y > y0 && length < run) {
+                            candidates.add(new Node(node, null, first, x0, y0, run, y - y0, node.covered + run * (y - y0)));
+                        }
+                        run = length;
+                    }
+                    candidates.add(new Node(node, null, first, x0, y0, run, y - y0, node.covered + run * (y - y0)));
+                }
+                candidates.sort((a, b) -> a.covered != b.covered ? Integer.compare(b.covered, a.covered)
+                    : Integer.compare(b.w * b.h, a.w * a.h));
+
+                List<Node> next = new ArrayList<>(beamWidth);
+                seen.clear();
+                for (Node candidate : candidates) {
+                    if (next.size() == beamWidth) {
+                        break;
+                    }
+                    BitSet free = (BitSet) candidate.parent.free.clone();
+                    for (int row = 0; row < candidate.h; row++) {
+                        int from = (candidate.y + row) * gridWidth + candidate.x;
+                        free.clear(from, from + candidate.w);
+                    }
+                    // Разные порядки разрезов часто приводят к одному и тому же остатку - он нужен лучу один раз.
+                    if (!seen.add(free)) {
+                        continue;
+                    }
+                    Node child = new Node(candidate.parent, free, candidate.scan, candidate.x, candidate.y,
+                        candidate.w, candidate.h, candidate.covered);
+                    if (child.covered == size) {
+                        List<Rect> rects = new ArrayList<>(depth);
+                        for (Node n = child; n.parent != null; n = n.parent) {
+                            rects.add(new Rect(n.x, n.y, n.w, n.h));
+                        }
+                        return rects;
+                    }
+                    next.add(child);
+                }
+                beam = next;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Состояние луча: последний выбранный прямоугольник и свободные пиксели после него.
+     * Все пиксели сетки до scan уже покрыты.
+     */
+    private static class Node {
+        final Node parent;
+        final BitSet free;
+        final int scan;
+        final int x, y, w, h;
+        final int covered;
+
+        Node(Node parent, BitSet free, int scan, int x, int y, int w, int h, int covered) {
+            this.parent = parent;
+            this.free = free;
+            this.scan = scan;
+            this.x = x;
+            this.y = y;
+            this.w = w;
+            this.h = h;
+            this.covered = covered;
+        }
+    }
+
+    private static List<Rect> copy(List<Rect> rects) {
+        List<Rect> copy = new ArrayList<>(rects.size());
+        for (Rect rect : rects) {
+            copy.add(new Rect(rect.x, rect.y, rect.w, rect.h));
+        }
+        return copy;
+    }
+}
@@ -0,0 +1,188 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ForkJoinPool;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Потоковое чтение огромного исходника: вместо ImageIO.read всего файла и масштабирования целиком
+ * каждый фрагмент декодируется только из своей области исходника (setSourceRegion) с прореживанием
+ * (setSourceSubsampling), так что в памяти одновременно лишь область одного фрагмента: для ближайшего
+ * соседа не больше чем вдвое крупнее самого фрагмента по каждой стороне, для фильтров - в восемь раз.
+ * <p>
+ * Ближайший сосед берет узлы общей для всего изображения сетки прореживания с шагом period, поэтому
+ * пересекающиеся рамки соседних фрагментов получают одинаковые пиксели, а чтение всей стены целиком
+ * дает то же, что и чтение по фрагментам. Фильтрам BOX и LANCZOS3 нужны соседние отсчеты, поэтому для
+ * них шаг вчетверо мельче (около четырех отсчетов на выходной пиксель), а область расширяется на радиус ядра.
+ * Объект неизменяемый; каждый вызов открывает свой ImageReader, поэтому фрагменты можно читать параллельно.
+ */
+class RegionDecoder {
+    /** С какого размера исходника (в пикселях) чтение по областям включается само: 32 Мп - 128 МиБ в ARGB. */
+    static final long AUTO_MIN_PIXELS = 32L * 1024 * 1024;
+    /**
+     * Предельный размер уменьшенной копии стены (для общей палитры): 256x256 - порядка одного фрагмента,
+     * и с запасом фильтров на чтение исходника копия не выходит за память фрагмента; для палитры этого хватает.
+     */
+    static final long PREVIEW_PIXELS = 256L * 256;
+
+    final int sourceWidth;
+    final int sourceHeight;
+    private final File source;
+    private final int targetWidth;
+    private final int targetHeight;
+    private final Resampler.Filter filter;
+    private final ForkJoinPool pool;
+    // Шаг прореживания исходника: целая часть коэффициента уменьшения (для фильтров - его четверти), не меньше 1.
+    private final int periodX;
+    private final int periodY;
+
+    private RegionDecoder(File source, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                          Resampler.Filter filter, ForkJoinPool pool) {
+        this.source = source;
+        this.sourceWidth = sourceWidth;
+        this.sourceHeight = sourceHeight;
+        this.targetWidth = targetWidth;
+        this.targetHeight = targetHeight;
+        this.filter = filter;
+        this.pool = pool;
+        int samples = filter == Resampler.Filter.NEAREST ? 1 : 4;
+        this.periodX = Math.max(1, sourceWidth / targetWidth / samples);
+        this.periodY = Math.max(1, sourceHeight / targetHeight / samples);
+    }
+
+    /**
+     * Читает только заголовок исходника - размеры, без декодирования пикселей.
+     * @param targetWidth Ширина всей стены после масштабирования.
+     * @param targetHeight Высота всей стены после масштабирования.
+     * @param pool Пул для фильтрации прочитанных областей.
+     */
+    static RegionDecoder open(File source, int targetWidth, int targetHeight, Resampler.Filter filter, ForkJoinPool pool) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            ImageReader reader = reader(in, source);
+            try {
+                return new RegionDecoder(source, reader.getWidth(0), reader.getHeight(0), targetWidth, targetHeight, filter, pool);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    long sourcePixels() {
+        return (long) sourceWidth * sourceHeight;
+    }
+
+    /**
+     * Вся стена, уменьшенная не больше чем до maxPixels пикселей тем же фильтром: исходник читается
+     * с прореживанием под размер копии, поэтому память - по размеру копии, а не стены.
+     */
+    BufferedImage readPreview(long maxPixels) throws IOException {
+        double scale = Math.min(1.0, Math.sqrt((double) maxPixels / ((double) targetWidth * targetHeight)));
+        int width = Math.max(1, (int) (targetWidth * scale));
+        int height = Math.max(1, (int) (targetHeight * scale));
+        RegionDecoder preview = new RegionDecoder(source, sourceWidth, sourceHeight, width, height, filter, pool);
+        return preview.readScaled(new Rectangle(0, 0, width, height));
+    }
+
+    /**
+     * Декодирует и масштабирует область стены. Читается лишь прямоугольник исходника, из которого
+     * берутся пиксели этой области.
+     * @param target Область в координатах масштабированной стены (totalWidth x totalHeight).
+     * @return Изображение TYPE_INT_ARGB размером target.width x target.height.
+     */
+    BufferedImage readScaled(Rectangle target) throws IOException {
+        if (filter != Resampler.Filter.NEAREST) {
+            return readFiltered(target);
+        }
+        int[] columns = new int[target.width];
+        for (int x = 0; x < target.width; x++) {
+            columns[x] = Resampler.nearest(target.x + x, sourceWidth, targetWidth, periodX);
+        }
+        int[] rows = new int[target.height];
+        for (int y = 0; y < target.height; y++) {
+            rows[y] = Resampler.nearest(target.y + y, sourceHeight, targetHeight, periodY);
+        }
+        // Отсчеты не убывают, а начало области кратно шагу - прореженная сетка совпадает с общей.
+        Rectangle region = new Rectangle(columns[0], rows[0],
+            columns[target.width - 1] - columns[0] + 1, rows[target.height - 1] - rows[0] + 1);
+
+        BufferedImage decoded = decode(region);
+
+        int decodedWidth = decoded.getWidth();
+        int[] decodedRow = new int[decodedWidth];
+        int[] pixels = new int[target.width * target.height];
+        int previousRow = -1;
+        for (int y = 0; y < target.height; y++) {
+            int row = (rows[y] - region.y) / periodY;
+            if (row != previousRow) {
+                decoded.getRGB(0, row, decodedWidth, 1, decodedRow, 0, decodedWidth);
+                previousRow = row;
+            }
+            int offset = y * target.width;
+            for (int x = 0; x < target.width; x++) {
+                pixels[offset + x] = decodedRow[(columns[x] - region.x) / periodX];
+            }
+        }
+        return Resampler.toImage(pixels, target.width, target.height);
+    }
+
+    /**
+     * BOX и LANCZOS3: область исходника с запасом на радиус ядра, прореженная с мелким шагом,
+     * фильтруется Resampler с ядрами, пересчитанными в координаты прореженной области.
+     */
+    private BufferedImage readFiltered(Rectangle target) throws IOException {
+        double scaleX = (double) sourceWidth / targetWidth;
+        double scaleY = (double) sourceHeight / targetHeight;
+        double supportX = filter.radius * Math.max(scaleX, 1.0);
+        double supportY = filter.radius * Math.max(scaleY, 1.0);
+        int left = alignedStart(target.x * scaleX - supportX, periodX);
+        int top = alignedStart(target.y * scaleY - supportY, periodY);
+        int right = Math.min(sourceWidth, (int) Math.ceil((target.x + target.width) * scaleX + supportX));
+        int bottom = Math.min(sourceHeight, (int) Math.ceil((target.y + target.height) * scaleY + supportY));
+        Rectangle region = new Rectangle(left, top, right - left, bottom - top);
+        BufferedImage decoded = decode(region);
+
+        // Отсчет k прореженной области - пиксель исходника left + k * period с центром left + k * period + 0.5.
+        Resampler.Kernel columns = Resampler.Kernel.build(filter, decoded.getWidth(), scaleX / periodX,
+            (target.x * scaleX - left) / periodX + 0.5 - 0.5 / periodX, target.width);
+        Resampler.Kernel rows = Resampler.Kernel.build(filter, decoded.getHeight(), scaleY / periodY,
+            (target.y * scaleY - top) / periodY + 0.5 - 0.5 / periodY, target.height);
+        int[] pixels = Resampler.resample(Pixmap.fromBufferedImage(decoded).getPixels(), decoded.getWidth(),
+            columns, rows, pool);
+        return Resampler.toImage(pixels, target.width, target.height);
+    }
+
+    private static int alignedStart(double coordinate, int period) {
+        return Math.max(0, (int) Math.floor(coordinate)) / period * period;
+    }
+
+    private BufferedImage decode(Rectangle region) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(source)) {
+            ImageReader reader = reader(in, source);
+            try {
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                param.setSourceSubsampling(periodX, periodY, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader reader(ImageInputStream in, File source) throws IOException {
+        Iterator<ImageReader> readers = in != null ? ImageIO.getImageReaders(in) : null;
+        if (readers == null || !readers.hasNext()) {
+            throw new IOException("Не удалось прочитать изображение: " + source);
+        }
+        ImageReader reader = readers.next();
+        reader.setInput(in, true, true);
+        return reader;
+    }
+}
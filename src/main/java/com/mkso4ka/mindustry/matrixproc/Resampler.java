@@ -0,0 +1,335 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * Масштабирование массивов ARGB (int на пиксель) вместо Graphics2D.drawImage. Фильтры разделимые:
+ * сначала по строкам, затем по столбцам; выходные строки делятся на полосы, полосы считаются
+ * параллельно в пуле fork-join. Каждая полоса читает и фильтрует по горизонтали только нужные ей
+ * строки исходника и держит их в кольце размером с окно ядра, а не копию всего изображения.
+ * <p>
+ * Цвета смешиваются в премультиплицированном виде (канал, умноженный на альфу), чтобы прозрачные
+ * пиксели не окрашивали края. Результат всегда TYPE_INT_ARGB, независимо от типа исходника.
+ */
+class Resampler {
+    private Resampler() {}
+
+    enum Filter {
+        /** Ближайший сосед: цвета не смешиваются, меньше цветов - меньше команд. По умолчанию. */
+        NEAREST(0.5),
+        /** Усреднение по площади: при уменьшении пиксель - среднее закрываемой им области исходника. */
+        BOX(0.5),
+        /** Lanczos с тремя лепестками: самое резкое уменьшение, но больше полутонов на границах. */
+        LANCZOS3(3.0);
+
+        /** Радиус ядра в пикселях исходника при масштабе 1. */
+        final double radius;
+
+        Filter(double radius) {
+            this.radius = radius;
+        }
+    }
+
+    /**
+     * Во сколько раз больше результата можно оставить исходник перед Lanczos: более сильное уменьшение
+     * сначала делается точным усреднением по площади до REDUCING_GAP размеров результата, иначе ядро
+     * растягивается на десятки отсчетов и стоимость растет с квадратом коэффициента.
+     */
+    static final int REDUCING_GAP = 3;
+
+    /**
+     * Точность целых весов горизонтального прохода: вес * альфа * канал не больше 2^12 * 255 * 255,
+     * сумма по окну с отрицательными лепестками Lanczos с запасом помещается в int.
+     */
+    private static final int FIXED_SHIFT = 12;
+
+    /**
+     * Строки исходника по запросу: row заполняется с нулевого индекса, длина - ширина исходника.
+     */
+    interface RowSource {
+        void read(int y, int[] row);
+    }
+
+    /**
+     * Масштабирует изображение любого типа (в том числе TYPE_CUSTOM) в TYPE_INT_ARGB. Исходник
+     * целиком не копируется: строки импортируются по мере надобности, ближайшему соседу - только
+     * те, из которых берутся пиксели.
+     */
+    static BufferedImage resize(BufferedImage image, int targetWidth, int targetHeight, Filter filter, ForkJoinPool pool) {
+        RowSource rows = (y, row) -> Pixmap.readRows(image, y, 1, row, 0);
+        int[] pixels = resample(rows, image.getWidth(), image.getHeight(), targetWidth, targetHeight, filter, pool);
+        return toImage(pixels, targetWidth, targetHeight);
+    }
+
+    /**
+     * Масштабирует весь массив sourceWidth x sourceHeight до targetWidth x targetHeight.
+     */
+    static int[] resample(int[] source, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                          Filter filter, ForkJoinPool pool) {
+        return resample(rows(source, sourceWidth), sourceWidth, sourceHeight, targetWidth, targetHeight, filter, pool);
+    }
+
+    private static int[] resample(RowSource source, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                                  Filter filter, ForkJoinPool pool) {
+        if (filter == Filter.NEAREST) {
+            return nearest(source, sourceWidth, sourceHeight, targetWidth, targetHeight, pool);
+        }
+        if (filter == Filter.LANCZOS3
+            && (sourceWidth > REDUCING_GAP * targetWidth || sourceHeight > REDUCING_GAP * targetHeight)) {
+            int reducedWidth = Math.min(sourceWidth, REDUCING_GAP * targetWidth);
+            int reducedHeight = Math.min(sourceHeight, REDUCING_GAP * targetHeight);
+            int[] reduced = resample(source, sourceWidth, sourceHeight, reducedWidth, reducedHeight, Filter.BOX, pool);
+            source = rows(reduced, reducedWidth);
+            sourceWidth = reducedWidth;
+            sourceHeight = reducedHeight;
+        }
+        Kernel columns = Kernel.build(filter, sourceWidth, (double) sourceWidth / targetWidth, 0, targetWidth);
+        Kernel rows = Kernel.build(filter, sourceHeight, (double) sourceHeight / targetHeight, 0, targetHeight);
+        return resample(source, sourceWidth, columns, rows, pool);
+    }
+
+    private static int[] nearest(RowSource source, int sourceWidth, int sourceHeight, int targetWidth, int targetHeight,
+                                 ForkJoinPool pool) {
+        int[] columns = new int[targetWidth];
+        for (int x = 0; x < targetWidth; x++) {
+            columns[x] = nearest(x, sourceWidth, targetWidth, 1);
+        }
+        int[] rows = new int[targetHeight];
+        for (int y = 0; y < targetHeight; y++) {
+            rows[y] = nearest(y, sourceHeight, targetHeight, 1);
+        }
+        int[] target = new int[targetWidth * targetHeight];
+        forEachBand(targetHeight, pool, (from, to) -> {
+            int[] row = new int[sourceWidth];
+            int loaded = -1;
+            for (int y = from; y < to; y++) {
+                if (rows[y] != loaded) {
+                    source.read(rows[y], row);
+                    loaded = rows[y];
+                }
+                int dst = y * targetWidth;
+                for (int x = 0; x < targetWidth; x++) {
+                    target[dst + x] = row[columns[x]];
+                }
+            }
+        });
+        return target;
+    }
+
+    /**
+     * Разделимая фильтрация массива с готовыми ядрами по осям (ядра задают и размер результата).
+     */
+    static int[] resample(int[] source, int sourceWidth, Kernel columns, Kernel rows, ForkJoinPool pool) {
+        return resample(rows(source, sourceWidth), sourceWidth, columns, rows, pool);
+    }
+
+    private static int[] resample(RowSource source, int sourceWidth, Kernel columns, Kernel rows, ForkJoinPool pool) {
+        int targetWidth = columns.size;
+        int[] target = new int[targetWidth * rows.size];
+        forEachBand(rows.size, pool, (from, to) -> {
+            // Окна соседних выходных строк сдвигаются только вниз, поэтому отфильтрованные по горизонтали
+            // строки исходника держим в кольце из taps строк: каждая фильтруется один раз, а буфер
+            // остается размером с окно ядра и помещается в кэш.
+            int ringRows = rows.taps;
+            int rowFloats = targetWidth * 4;
+            float[] ring = new float[ringRows * rowFloats];
+            float[] sum = new float[rowFloats];
+            int[] row = new int[sourceWidth];
+            int next = rows.start[from];
+            for (int y = from; y < to; y++) {
+                int start = rows.start[y];
+                int end = start + rows.length[y];
+                for (next = Math.max(next, start); next < end; next++) {
+                    source.read(next, row);
+                    filterRow(row, columns, ring, (next % ringRows) * rowFloats);
+                }
+                Arrays.fill(sum, 0);
+                int weightBase = y * rows.taps;
+                for (int k = 0; k < rows.length[y]; k++) {
+                    float w = rows.weights[weightBase + k];
+                    int offset = ((start + k) % ringRows) * rowFloats;
+                    for (int i = 0; i < rowFloats; i++) {
+                        sum[i] += w * ring[offset + i];
+                    }
+                }
+                int dst = y * targetWidth;
+                for (int x = 0, i = 0; x < targetWidth; x++, i += 4) {
+                    target[dst + x] = unpremultiply(sum[i], sum[i + 1], sum[i + 2], sum[i + 3]);
+                }
+            }
+        });
+        return target;
+    }
+
+    private static RowSource rows(int[] pixels, int width) {
+        return (y, row) -> System.arraycopy(pixels, y * width, row, 0, width);
+    }
+
+    /**
+     * Горизонтальный проход по одной строке: премультиплицированные A, R*A, G*A, B*A на выходной пиксель.
+     * Это самый горячий цикл - он проходит по каждому пикселю исходника, - поэтому веса здесь целые
+     * (сумма весов 1 << FIXED_SHIFT), а в float переводится только результат.
+     */
+    private static void filterRow(int[] row, Kernel columns, float[] out, int outOffset) {
+        final float scale = 1f / (1 << FIXED_SHIFT);
+        for (int x = 0; x < columns.size; x++, outOffset += 4) {
+            int a = 0, r = 0, g = 0, b = 0;
+            int src = columns.start[x];
+            int weightBase = x * columns.taps;
+            for (int k = 0; k < columns.length[x]; k++) {
+                int pixel = row[src + k];
+                int wa = columns.fixedWeights[weightBase + k] * (pixel >>> 24);
+                a += wa;
+                r += wa * (pixel >> 16 & 0xff);
+                g += wa * (pixel >> 8 & 0xff);
+                b += wa * (pixel & 0xff);
+            }
+            out[outOffset] = a * scale;
+            out[outOffset + 1] = r * scale;
+            out[outOffset + 2] = g * scale;
+            out[outOffset + 3] = b * scale;
+        }
+    }
+
+    private static int unpremultiply(float a, float r, float g, float b) {
+        int alpha = clamp(a);
+        if (alpha == 0 || a <= 0) {
+            return 0;
+        }
+        return alpha << 24 | clamp(r / a) << 16 | clamp(g / a) << 8 | clamp(b / a);
+    }
+
+    private static int clamp(float value) {
+        // Отрицательные лепестки Lanczos дают выход за 0..255.
+        int rounded = Math.round(value);
+        return rounded < 0 ? 0 : Math.min(rounded, 255);
+    }
+
+    /**
+     * Координата исходника для пикселя результата: ближайший к центру пикселя узел сетки с шагом period.
+     * Центр, попавший ровно на границу пикселей, относится к левому (верхнему).
+     */
+    static int nearest(int targetCoordinate, int sourceSize, int targetSize, int period) {
+        long center = ((2L * targetCoordinate + 1) * sourceSize - 1) / (2L * targetSize);
+        long snapped = (center + period / 2) / period * period;
+        long last = (sourceSize - 1) / period * period;
+        return (int) Math.min(snapped, last);
+    }
+
+    static BufferedImage toImage(int[] pixels, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        System.arraycopy(pixels, 0, ((DataBufferInt) image.getRaster().getDataBuffer()).getData(), 0, pixels.length);
+        return image;
+    }
+
+    private interface BandTask {
+        void run(int fromRow, int toRow);
+    }
+
+    /**
+     * Делит строки [0, rows) на полосы - по четыре на поток пула, как при отрисовке схемы.
+     */
+    private static void forEachBand(int rows, ForkJoinPool pool, BandTask task) {
+        int rowsPerBand = Math.max(1, (rows + pool.getParallelism() * 4 - 1) / (pool.getParallelism() * 4));
+        int bandCount = (rows + rowsPerBand - 1) / rowsPerBand;
+        pool.submit(() -> IntStream.range(0, bandCount).parallel()
+            .forEach(band -> task.run(band * rowsPerBand, Math.min(rows, (band + 1) * rowsPerBand)))).join();
+    }
+
+    /**
+     * Веса одной оси: для выходного пикселя d - отсчеты исходника start[d] .. start[d] + length[d] - 1
+     * с весами weights[d * taps + k], сумма весов равна 1.
+     */
+    static class Kernel {
+        final int size;
+        final int taps;
+        final int[] start;
+        final int[] length;
+        final float[] weights;
+        /** Те же веса в фиксированной точке для горизонтального прохода. */
+        final int[] fixedWeights;
+
+        private Kernel(int size, int taps) {
+            this.size = size;
+            this.taps = taps;
+            this.start = new int[size];
+            this.length = new int[size];
+            this.weights = new float[size * taps];
+            this.fixedWeights = new int[size * taps];
+        }
+
+        /**
+         * Центр выходного пикселя d в координатах исходника (пиксель i занимает [i, i + 1)):
+         * (d + 0.5) * scale + offset. Только для BOX и LANCZOS3 - ближайший сосед обходится без весов.
+         * @param scale Пикселей исходника на пиксель результата.
+         */
+        static Kernel build(Filter filter, int sourceSize, double scale, double offset, int size) {
+            // При уменьшении ядро растягивается на scale, при увеличении остается единичным.
+            double stretch = Math.max(scale, 1.0);
+            double support = filter.radius * stretch;
+            int taps = (int) Math.ceil(support * 2) + 2;
+            Kernel kernel = new Kernel(size, taps);
+            double[] raw = new double[taps];
+            for (int d = 0; d < size; d++) {
+                double center = (d + 0.5) * scale + offset;
+                int first = Math.max(0, (int) Math.floor(center - support));
+                int end = Math.min(sourceSize, (int) Math.ceil(center + support));
+                int count = Math.max(0, Math.min(taps, end - first));
+                double sum = 0;
+                for (int k = 0; k < count; k++) {
+                    raw[k] = weight(filter, first + k, center, stretch);
+                    sum += raw[k];
+                }
+                if (sum <= 0) {
+                    // Центр за краем исходника: берем ближайший крайний пиксель.
+                    first = Math.max(0, Math.min(sourceSize - 1, (int) Math.floor(center)));
+                    count = 1;
+                    raw[0] = 1;
+                    sum = 1;
+                }
+                kernel.start[d] = first;
+                kernel.length[d] = count;
+                // Округленные по отдельности веса при сильном уменьшении не дают в сумме 1 << FIXED_SHIFT,
+                // и непрозрачный пиксель терял бы альфу (0xfe); остаток округления отдается самому большому весу.
+                int fixedSum = 0;
+                int largest = 0;
+                for (int k = 0; k < count; k++) {
+                    kernel.weights[d * taps + k] = (float) (raw[k] / sum);
+                    kernel.fixedWeights[d * taps + k] = (int) Math.round(raw[k] / sum * (1 << FIXED_SHIFT));
+                    fixedSum += kernel.fixedWeights[d * taps + k];
+                    if (raw[k] > raw[largest]) {
+                        largest = k;
+                    }
+                }
+                kernel.fixedWeights[d * taps + largest] += (1 << FIXED_SHIFT) - fixedSum;
+            }
+            return kernel;
+        }
+
+        private static double weight(Filter filter, int index, double center, double stretch) {
+            if (filter == Filter.BOX) {
+                // Доля пикселя [index, index + 1), накрытая окном [center - stretch/2, center + stretch/2].
+                double from = Math.max(index, center - stretch / 2);
+                double to = Math.min(index + 1, center + stretch / 2);
+                return Math.max(0, to - from);
+            }
+            double x = (index + 0.5 - center) / stretch;
+            return lanczos3(x);
+        }
+
+        private static double lanczos3(double x) {
+            if (x == 0) {
+                return 1;
+            }
+            if (Math.abs(x) >= 3) {
+                return 0;
+            }
+            double px = Math.PI * x;
+            return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+        }
+    }
+}
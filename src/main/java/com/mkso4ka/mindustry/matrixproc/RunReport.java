@@ -0,0 +1,246 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Замеры этапов конвейера. Каждый этап открывается {@link #stage(String, int)} и закрывается
+ * в try-with-resources; при закрытии фиксируется событие JFR ({@link StageEvent}) и замер для
+ * итогового JSON-отчета: суммы и перцентили по этапам, а также строка на каждый фрагмент.
+ * Этап "tile" - обработка фрагмента целиком, по нему считаются итоговые суммы.
+ * Безопасен для вызова из нескольких потоков.
+ */
+class RunReport {
+    static final String TILE_STAGE = "tile";
+
+    private final long startNanos = System.nanoTime();
+    private final Instant startedAt = Instant.now();
+    // Этапы в порядке первого появления.
+    private final Map<String, List<Sample>> samples = new LinkedHashMap<>();
+
+    /**
+     * Начинает замер этапа.
+     * @param tileIndex Индекс дисплея или -1 для этапов всего запуска.
+     */
+    public Timer stage(String stage, int tileIndex) {
+        return new Timer(stage, tileIndex);
+    }
+
+    private synchronized void record(Sample sample) {
+        samples.computeIfAbsent(sample.stage, key -> new ArrayList<>()).add(sample);
+    }
+
+    /**
+     * Пишет отчет в JSON: время запуска, общее время, суммы по фрагментам, по каждому этапу -
+     * количество, сумма, p50/p90/p99 и максимум (мс), затем фрагменты по индексу.
+     */
+    public synchronized void write(Path file, Map<String, Object> parameters) throws IOException {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"startedAt\": \"").append(startedAt).append("\",\n");
+        json.append("  \"wallMs\": ").append(millis(System.nanoTime() - startNanos)).append(",\n");
+        json.append("  \"parameters\": {");
+        int field = 0;
+        for (Map.Entry<String, Object> entry : parameters.entrySet()) {
+            json.append(field++ > 0 ? ", " : "").append('"').append(escape(entry.getKey())).append("\": ");
+            Object value = entry.getValue();
+            if (value instanceof Number || value instanceof Boolean) {
+                json.append(value);
+            } else {
+                json.append('"').append(escape(String.valueOf(value))).append('"');
+            }
+        }
+        json.append("},\n");
+
+        List<Sample> tiles = new ArrayList<>(samples.getOrDefault(TILE_STAGE, List.of()));
+        tiles.sort((a, b) -> Integer.compare(a.tileIndex, b.tileIndex));
+        long pixels = 0;
+        long colors = 0;
+        long rects = 0;
+        long commands = 0;
+        long processors = 0;
+        int maxTicks = 0;
+        for (Sample tile : tiles) {
+            pixels += tile.pixels;
+            colors += tile.colors;
+            rects += tile.rects;
+            commands += tile.commands;
+            processors += tile.fill.length;
+            maxTicks = Math.max(maxTicks, tile.ticks);
+        }
+        json.append("  \"totals\": {\"tiles\": ").append(tiles.size())
+            .append(", \"pixels\": ").append(pixels)
+            .append(", \"colors\": ").append(colors)
+            .append(", \"rects\": ").append(rects)
+            .append(", \"commands\": ").append(commands)
+            .append(", \"processors\": ").append(processors)
+            .append(", \"maxTicks\": ").append(maxTicks).append("},\n");
+
+        json.append("  \"stages\": {");
+        int stageNumber = 0;
+        for (Map.Entry<String, List<Sample>> entry : samples.entrySet()) {
+            long[] durations = new long[entry.getValue().size()];
+            long total = 0;
+            for (int i = 0; i < durations.length; i++) {
+                durations[i] = entry.getValue().get(i).nanos;
+                total += durations[i];
+            }
+            Arrays.sort(durations);
+            json.append(stageNumber++ > 0 ? "," : "").append("\n    \"").append(escape(entry.getKey())).append("\": {")
+                .append("\"count\": ").append(durations.length)
+                .append(", \"totalMs\": ").append(millis(total))
+                .append(", \"p50Ms\": ").append(millis(percentile(durations, 50)))
+                .append(", \"p90Ms\": ").append(millis(percentile(durations, 90)))
+                .append(", \"p99Ms\": ").append(millis(percentile(durations, 99)))
+                .append(", \"maxMs\": ").append(millis(durations[durations.length - 1])).append('}');
+        }
+        json.append("\n  },\n");
+
+        json.append("  \"tiles\": [");
+        for (int i = 0; i < tiles.size(); i++) {
+            Sample tile = tiles.get(i);
+            json.append(i > 0 ? "," : "").append("\n    {\"index\": ").append(tile.tileIndex)
+                .append(", \"ms\": ").append(millis(tile.nanos))
+                .append(", \"pixels\": ").append(tile.pixels)
+                .append(", \"colors\": ").append(tile.colors)
+                .append(", \"rects\": ").append(tile.rects)
+                .append(", \"commands\": ").append(tile.commands)
+                .append(", \"fill\": ").append(Arrays.toString(tile.fill))
+                .append(", \"ticks\": ").append(tile.ticks)
+                .append(", \"ticksToHalf\": ").append(tile.ticksToHalf)
+                .append(", \"droppedCommands\": ").append(tile.droppedCommands).append('}');
+        }
+        json.append(tiles.isEmpty() ? "]\n" : "\n  ]\n");
+        json.append("}\n");
+        Files.write(file, json.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Перцентиль по методу ближайшего ранга; values отсортирован и не пуст.
+     */
+    static long percentile(long[] values, int percent) {
+        int rank = (int) Math.ceil(percent / 100.0 * values.length);
+        return values[Math.max(0, rank - 1)];
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1_000_000.0);
+    }
+
+    private static String escape(String value) {
+        StringBuilder out = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.append('\\').append(c);
+            } else if (c < 0x20) {
+                out.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+            } else {
+                out.append(c);
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Открытый замер этапа. Счетчики задаются по ходу этапа и попадают и в событие JFR, и в отчет.
+     */
+    class Timer implements AutoCloseable {
+        private final StageEvent event = new StageEvent();
+        private final long begin = System.nanoTime();
+        private int[] fill = new int[0];
+        private int ticksToHalf;
+        private int droppedCommands;
+
+        private Timer(String stage, int tileIndex) {
+            event.stage = stage;
+            event.tileIndex = tileIndex;
+            event.begin();
+        }
+
+        public Timer pixels(long pixels) {
+            event.pixels = pixels;
+            return this;
+        }
+
+        public Timer colors(int colors) {
+            event.colors = colors;
+            return this;
+        }
+
+        public Timer rects(int rects) {
+            event.rects = rects;
+            return this;
+        }
+
+        public Timer commands(int commands) {
+            event.commands = commands;
+            return this;
+        }
+
+        /**
+         * @param fill Число команд в каждом процессоре фрагмента.
+         */
+        public Timer processors(int[] fill) {
+            event.processors = fill.length;
+            this.fill = fill;
+            return this;
+        }
+
+        public Timer ticks(TickSimulator.Result ticks) {
+            event.ticks = ticks.ticksToComplete;
+            this.ticksToHalf = ticks.ticksToHalf;
+            this.droppedCommands = ticks.droppedCommands;
+            return this;
+        }
+
+        @Override
+        public void close() {
+            long nanos = System.nanoTime() - begin;
+            event.end();
+            if (event.shouldCommit()) {
+                event.commit();
+            }
+            record(new Sample(event.stage, event.tileIndex, nanos, event.pixels, event.colors, event.rects, event.commands, fill,
+                event.ticks, ticksToHalf, droppedCommands));
+        }
+    }
+
+    private static class Sample {
+        final String stage;
+        final int tileIndex;
+        final long nanos;
+        final long pixels;
+        final int colors;
+        final int rects;
+        final int commands;
+        final int[] fill;
+        final int ticks;
+        final int ticksToHalf;
+        final int droppedCommands;
+
+        Sample(String stage, int tileIndex, long nanos, long pixels, int colors, int rects, int commands, int[] fill,
+               int ticks, int ticksToHalf, int droppedCommands) {
+            this.stage = stage;
+            this.tileIndex = tileIndex;
+            this.nanos = nanos;
+            this.pixels = pixels;
+            this.colors = colors;
+            this.rects = rects;
+            this.commands = commands;
+            this.fill = fill;
+            this.ticks = ticks;
+            this.ticksToHalf = ticksToHalf;
+            this.droppedCommands = droppedCommands;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Событие JDK Flight Recorder для одного этапа конвертации (весь запуск или один фрагмент).
+ * Длительность JFR считает сам между begin() и commit(). Запись: java -XX:StartFlightRecording=filename=run.jfr ...
+ * Счетчики, не относящиеся к этапу, остаются нулями.
+ */
+@Name("com.mkso4ka.matrixproc.Stage")
+@Label("Этап конвертации")
+@Category("MatrixProc")
+@Description("Этап конвейера: масштабирование, импорт, разбиение, генерация команд, размещение и т.д.")
+class StageEvent extends Event {
+    @Label("Этап")
+    String stage;
+
+    @Label("Дисплей")
+    @Description("Индекс дисплея (фрагмента) или -1 для этапов всего запуска")
+    int tileIndex;
+
+    @Label("Пиксели")
+    long pixels;
+
+    @Label("Цвета")
+    int colors;
+
+    @Label("Прямоугольники")
+    int rects;
+
+    @Label("Команды")
+    int commands;
+
+    @Label("Процессоры")
+    int processors;
+
+    @Label("Тиков до прорисовки")
+    @Description("Оценка TickSimulator: тик последнего drawflush дисплея")
+    int ticks;
+}
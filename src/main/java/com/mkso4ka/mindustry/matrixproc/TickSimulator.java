@@ -0,0 +1,84 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Простая модель того, как быстро дисплей прорисуется в игре при первом проходе процессоров.
+ * <p>
+ * Модель: все процессоры дисплея стартуют одновременно и выполняют по instructionsPerTick инструкций
+ * за тик (микропроцессор - 2), инструкция номер i (с 1) выполняется на тике ceil(i / instructionsPerTick).
+ * Команды рисования копятся в буфере процессора и попадают на дисплей только на drawflush; буфер вмещает
+ * не больше MAX_GRAPHICS_BUFFER команд, остальные игра отбрасывает. Дисплей считается прорисованным на тике
+ * последнего drawflush, а "половина" - на тике, к которому сброшена половина суммарной площади команд.
+ * Порядок обновления построек, задержки сети и стоимость отрисовки самого дисплея не моделируются.
+ */
+class TickSimulator {
+    /** Сколько команд рисования вмещает буфер процессора между drawflush. */
+    static final int MAX_GRAPHICS_BUFFER = 256;
+    /** Инструкций за тик у микропроцессора (постройка 1x1, которую размещает DisplayProcessorMatrixFinal). */
+    static final int MICRO_PROCESSOR_IPT = 2;
+
+    // Сбросы буфера: {процессор, номер инструкции drawflush (с 1), команд рисования, площадь в пикселях}.
+    private final List<long[]> flushes = new ArrayList<>();
+
+    /**
+     * Записывает drawflush.
+     * @param instruction Номер инструкции drawflush в коде процессора, с 1.
+     * @param commands Сколько команд рисования в буфере на момент сброса.
+     * @param area Площадь, которую они рисуют.
+     */
+    void flush(int processor, int instruction, int commands, long area) {
+        flushes.add(new long[] {processor, instruction, commands, area});
+    }
+
+    Result simulate(int instructionsPerTick) {
+        long[] ticks = new long[flushes.size()];
+        long totalArea = 0;
+        long complete = 0;
+        int dropped = 0;
+        for (int i = 0; i < ticks.length; i++) {
+            long[] flush = flushes.get(i);
+            ticks[i] = (flush[1] + instructionsPerTick - 1) / instructionsPerTick;
+            complete = Math.max(complete, ticks[i]);
+            totalArea += flush[3];
+            dropped += (int) Math.max(0, flush[2] - MAX_GRAPHICS_BUFFER);
+        }
+        Integer[] order = new Integer[ticks.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Long.compare(ticks[a], ticks[b]));
+        long half = 0;
+        long area = 0;
+        for (int index : order) {
+            area += flushes.get(index)[3];
+            if (area * 2 >= totalArea) {
+                half = ticks[index];
+                break;
+            }
+        }
+        return new Result((int) complete, (int) half, flushes.size(), dropped);
+    }
+
+    /**
+     * Итог модели для одного дисплея.
+     */
+    static class Result {
+        /** Тик последнего drawflush: дисплей прорисован целиком. */
+        final int ticksToComplete;
+        /** Тик, к которому на дисплей попала половина площади. */
+        final int ticksToHalf;
+        final int flushes;
+        /** Команды, не поместившиеся в буфер и отброшенные игрой. */
+        final int droppedCommands;
+
+        Result(int ticksToComplete, int ticksToHalf, int flushes, int droppedCommands) {
+            this.ticksToComplete = ticksToComplete;
+            this.ticksToHalf = ticksToHalf;
+            this.flushes = flushes;
+            this.droppedCommands = droppedCommands;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+
+/**
+ * Постоянный кэш разбиений фрагментов на диске, адресуемый содержимым.
+ * <p>
+ * Ключ - SHA-256 от пикселей фрагмента, его размера, смещений и варианта обработки (например,
+ * бюджета команд), укороченный до 128 бит. Разбиение хранится в отдельном файле в компактном
+ * двоичном виде, а ключи, размеры файлов и время последнего обращения - в индексе index.bin,
+ * отображенном в память: это хеш-таблица с открытой адресацией и линейным пробированием.
+ * Когда суммарный размер или заполненность таблицы превышают предел, вытесняются записи,
+ * к которым дольше всего не обращались (LRU).
+ * <p>
+ * Методы синхронизированы, поэтому один кэш можно использовать из всех потоков обработки фрагментов.
+ * Одновременная работа нескольких процессов с одной папкой кэша не поддерживается.
+ */
+class TileCache implements Closeable {
+    private static final int INDEX_MAGIC = 0x4d505443; // "MPTC"
+    private static final int DATA_MAGIC = 0x4d505452; // "MPTR"
+    /** Увеличивается при изменении алгоритма разбиения или формата, чтобы старые записи не подходили. */
+    private static final int FORMAT_VERSION = 1;
+    private static final int CAPACITY = 4096;
+    private static final int MAX_ENTRIES = CAPACITY * 3 / 4;
+    private static final int KEY_BYTES = 16;
+    // Заголовок: magic, версия, емкость, счетчик обращений (long).
+    private static final int HEADER_BYTES = 20;
+    // Ячейка: ключ, размер файла данных (0 - ячейка пуста), время последнего обращения.
+    private static final int SLOT_BYTES = KEY_BYTES + 4 + 8;
+
+    private final Path directory;
+    private final long maxBytes;
+    private final FileChannel indexChannel;
+    private final MappedByteBuffer index;
+    private int hits;
+    private int misses;
+
+    private TileCache(Path directory, long maxBytes, FileChannel indexChannel, MappedByteBuffer index) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.indexChannel = indexChannel;
+        this.index = index;
+    }
+
+    /**
+     * Открывает (или создает) кэш в папке directory.
+     * @param maxBytes Предел суммарного размера файлов данных.
+     */
+    public static TileCache open(Path directory, long maxBytes) throws IOException {
+        Files.createDirectories(directory);
+        FileChannel channel = FileChannel.open(directory.resolve("index.bin"),
+            StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES + (long) CAPACITY * SLOT_BYTES);
+        if (index.getInt(0) != INDEX_MAGIC || index.getInt(4) != FORMAT_VERSION || index.getInt(8) != CAPACITY) {
+            // Новый или несовместимый индекс: начинаем с пустой таблицы, старые файлы данных удаляем.
+            for (int i = 0; i < HEADER_BYTES + CAPACITY * SLOT_BYTES; i++) {
+                index.put(i, (byte) 0);
+            }
+            index.putInt(0, INDEX_MAGIC);
+            index.putInt(4, FORMAT_VERSION);
+            index.putInt(8, CAPACITY);
+            try (Stream<Path> files = Files.list(directory)) {
+                for (Path file : (Iterable<Path>) files::iterator) {
+                    if (file.getFileName().toString().endsWith(".rects")) {
+                        Files.deleteIfExists(file);
+                    }
+                }
+            }
+        }
+        return new TileCache(directory, maxBytes, channel, index);
+    }
+
+    /**
+     * Ключ фрагмента.
+     * @param variant Все, что кроме пикселей влияет на разбиение (например, "budget=989").
+     */
+    public static byte[] key(Pixmap pixmap, int offsetX, int offsetY, String variant) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer header = ByteBuffer.allocate(20);
+        header.putInt(FORMAT_VERSION).putInt(pixmap.getWidth()).putInt(pixmap.getHeight()).putInt(offsetX).putInt(offsetY);
+        digest.update(header.array());
+        digest.update(variant.getBytes());
+        ByteBuffer row = ByteBuffer.allocate(pixmap.getWidth() * 4);
+        int[] pixels = pixmap.getPixels();
+        for (int y = 0; y < pixmap.getHeight(); y++) {
+            row.clear();
+            row.asIntBuffer().put(pixels, y * pixmap.getStride(), pixmap.getWidth());
+            digest.update(row.array());
+        }
+        byte[] key = new byte[KEY_BYTES];
+        System.arraycopy(digest.digest(), 0, key, 0, KEY_BYTES);
+        return key;
+    }
+
+    /**
+     * Разбиение по ключу или null. Порядок цветов и прямоугольников такой же, как при сохранении.
+     */
+    public synchronized Map<Integer, List<Rect>> get(byte[] key) {
+        int slot = find(key);
+        if (slot < 0) {
+            misses++;
+            return null;
+        }
+        Map<Integer, List<Rect>> rects = read(dataFile(key));
+        if (rects == null) {
+            // Файл данных пропал или поврежден - забываем запись.
+            remove(slot);
+            misses++;
+            return null;
+        }
+        index.putLong(slotOffset(slot) + KEY_BYTES + 4, nextTick());
+        hits++;
+        return rects;
+    }
+
+    /**
+     * Сохраняет разбиение. Если кэш переполнен, сначала вытесняются самые старые записи.
+     */
+    public synchronized void put(byte[] key, Map<Integer, List<Rect>> rects) throws IOException {
+        byte[] data = encode(rects);
+        if (data == null || data.length > maxBytes) {
+            return;
+        }
+        int existing = find(key);
+        if (existing >= 0) {
+            remove(existing);
+        }
+        evict(data.length);
+
+        Path file = dataFile(key);
+        Path temp = directory.resolve(file.getFileName() + ".tmp");
+        Files.write(temp, data);
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+
+        int slot = home(key);
+        while (sizeAt(slot) != 0) {
+            slot = (slot + 1) % CAPACITY;
+        }
+        int offset = slotOffset(slot);
+        for (int i = 0; i < KEY_BYTES; i++) {
+            index.put(offset + i, key[i]);
+        }
+        index.putInt(offset + KEY_BYTES, data.length);
+        index.putLong(offset + KEY_BYTES + 4, nextTick());
+    }
+
+    public synchronized int getHits() {
+        return hits;
+    }
+
+    public synchronized int getMisses() {
+        return misses;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        index.force();
+        indexChannel.close();
+    }
+
+    /**
+     * Освобождает место под запись размером incoming: удаляет записи с самым старым обращением,
+     * пока суммарный размер и число записей не окажутся в пределах.
+     */
+    private void evict(int incoming) throws IOException {
+        while (true) {
+            long total = incoming;
+            int entries = 1;
+            int oldest = -1;
+            long oldestTick = Long.MAX_VALUE;
+            for (int slot = 0; slot < CAPACITY; slot++) {
+                int size = sizeAt(slot);
+                if (size == 0) {
+                    continue;
+                }
+                total += size;
+                entries++;
+                long tick = index.getLong(slotOffset(slot) + KEY_BYTES + 4);
+                if (tick < oldestTick) {
+                    oldestTick = tick;
+                    oldest = slot;
+                }
+            }
+            if ((total <= maxBytes && entries <= MAX_ENTRIES) || oldest < 0) {
+                return;
+            }
+            Files.deleteIfExists(dataFile(keyAt(oldest)));
+            remove(oldest);
+        }
+    }
+
+    private int find(byte[] key) {
+        int slot = home(key);
+        while (sizeAt(slot) != 0) {
+            if (keyMatches(slot, key)) {
+                return slot;
+            }
+            slot = (slot + 1) % CAPACITY;
+        }
+        return -1;
+    }
+
+    /**
+     * Удаление из таблицы с линейным пробированием без "надгробий": следующие записи цепочки
+     * сдвигаются назад, если их домашняя ячейка не лежит между освобожденной ячейкой и ними.
+     */
+    private void remove(int slot) {
+        int hole = slot;
+        int next = slot;
+        while (true) {
+            next = (next + 1) % CAPACITY;
+            if (sizeAt(next) == 0) {
+                break;
+            }
+            int home = home(keyAt(next));
+            boolean between = hole <= next ? (hole < home && home <= next) : (hole < home || home <= next);
+            if (!between) {
+                copySlot(next, hole);
+                hole = next;
+            }
+        }
+        index.putInt(slotOffset(hole) + KEY_BYTES, 0);
+    }
+
+    private void copySlot(int from, int to) {
+        int source = slotOffset(from);
+        int target = slotOffset(to);
+        for (int i = 0; i < SLOT_BYTES; i++) {
+            index.put(target + i, index.get(source + i));
+        }
+    }
+
+    private long nextTick() {
+        long tick = index.getLong(12) + 1;
+        index.putLong(12, tick);
+        return tick;
+    }
+
+    private static int home(byte[] key) {
+        int hash = (key[0] & 0xff) | (key[1] & 0xff) << 8 | (key[2] & 0xff) << 16 | (key[3] & 0x7f) << 24;
+        return hash % CAPACITY;
+    }
+
+    private static int slotOffset(int slot) {
+        return HEADER_BYTES + slot * SLOT_BYTES;
+    }
+
+    private int sizeAt(int slot) {
+        return index.getInt(slotOffset(slot) + KEY_BYTES);
+    }
+
+    private byte[] keyAt(int slot) {
+        byte[] key = new byte[KEY_BYTES];
+        for (int i = 0; i < KEY_BYTES; i++) {
+            key[i] = index.get(slotOffset(slot) + i);
+        }
+        return key;
+    }
+
+    private boolean keyMatches(int slot, byte[] key) {
+        int offset = slotOffset(slot);
+        for (int i = 0; i < KEY_BYTES; i++) {
+            if (index.get(offset + i) != key[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private Path dataFile(byte[] key) {
+        StringBuilder name = new StringBuilder(KEY_BYTES * 2 + 6);
+        for (byte b : key) {
+            name.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return directory.resolve(name.append(".rects").toString());
+    }
+
+    /**
+     * Формат файла данных: magic, число цветов, затем для каждого цвета - ARGB, число прямоугольников
+     * и сами прямоугольники по 4 беззнаковых 16-битных числа (x, y, w, h).
+     * @return null, если координаты не помещаются в 16 бит.
+     */
+    private static byte[] encode(Map<Integer, List<Rect>> rects) {
+        int rectCount = 0;
+        for (List<Rect> rectList : rects.values()) {
+            rectCount += rectList.size();
+        }
+        ByteBuffer data = ByteBuffer.allocate(8 + rects.size() * 8 + rectCount * 8);
+        data.putInt(DATA_MAGIC).putInt(rects.size());
+        for (Map.Entry<Integer, List<Rect>> entry : rects.entrySet()) {
+            data.putInt(entry.getKey()).putInt(entry.getValue().size());
+            for (Rect rect : entry.getValue()) {
+                if (Math.max(Math.max(rect.x, rect.y), Math.max(rect.w, rect.h)) > 0xffff) {
+                    return null;
+                }
+                data.putChar((char) rect.x).putChar((char) rect.y).putChar((char) rect.w).putChar((char) rect.h);
+            }
+        }
+        return data.array();
+    }
+
+    private static Map<Integer, List<Rect>> read(Path file) {
+        try {
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(file));
+            if (data.remaining() < 8 || data.getInt() != DATA_MAGIC) {
+                return null;
+            }
+            int colors = data.getInt();
+            // LinkedHashMap сохраняет порядок цветов, поэтому код процессоров совпадает с несохраненным.
+            Map<Integer, List<Rect>> rects = new LinkedHashMap<>();
+            for (int c = 0; c < colors; c++) {
+                int color = data.getInt();
+                int count = data.getInt();
+                List<Rect> rectList = new ArrayList<>(count);
+                for (int r = 0; r < count; r++) {
+                    rectList.add(new Rect(data.getChar(), data.getChar(), data.getChar(), data.getChar()));
+                }
+                rects.put(color, rectList);
+            }
+            return rects;
+        } catch (IOException | RuntimeException e) {
+            return null;
+        }
+    }
+}
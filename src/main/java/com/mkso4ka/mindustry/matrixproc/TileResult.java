@@ -0,0 +1,18 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+/**
+ * Результат обработки одного фрагмента (дисплея) в параллельном конвейере.
+ */
+class TileResult {
+    final int displayIndex;
+    final int processorCount;
+    final String summary;
+    final boolean fromCache;
+
+    TileResult(int displayIndex, int processorCount, String summary, boolean fromCache) {
+        this.displayIndex = displayIndex;
+        this.processorCount = processorCount;
+        this.summary = summary;
+        this.fromCache = fromCache;
+    }
+}
@@ -0,0 +1,144 @@
+package com.mkso4ka.mindustry.matrixproc;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+/**
+ * Сверка ProcessorAssignment.solve с полным перебором на маленьких случайных задачах: размещено
+ * столько же процессоров, сколько в лучшем распределении, каждое место отдано досягаемому дисплею,
+ * и ни один дисплей не получил больше, чем требует.
+ */
+class ProcessorAssignmentTest {
+    private static final int INSTANCES = 500;
+
+    @Test
+    void placesAsManyAsExhaustiveSearch() {
+        Random random = new Random(20260118L);
+        for (int instance = 0; instance < INSTANCES; instance++) {
+            int candidates = random.nextInt(9);
+            int displays = 1 + random.nextInt(3);
+            int[] required = new int[displays];
+            for (int d = 0; d < displays; d++) {
+                required[d] = random.nextInt(5);
+            }
+            Instance task = Instance.random(random, candidates, displays);
+
+            int[] result = ProcessorAssignment.solve(candidates, task.reachStart, task.reachDisplays, task.reachDistanceSq, required);
+
+            String name = "задача " + instance;
+            assertEquals(candidates, result.length, name);
+            assertValid(task, required, result, name);
+            assertEquals(bestPlacement(task, required.clone(), 0), placed(result), name);
+        }
+    }
+
+    @Test
+    void movesSharedCellToDisplayWithNoOtherChoice() {
+        // Место 0 ближе к дисплею 1, но место 1 досягает только дисплея 1: жадная раздача заняла бы оба места дисплеем 1.
+        Instance task = new Instance(
+            new int[] {0, 2, 3},
+            new int[] {0, 1, 1},
+            new double[] {9, 1, 1});
+        int[] result = ProcessorAssignment.solve(2, task.reachStart, task.reachDisplays, task.reachDistanceSq, new int[] {1, 1});
+        assertArrayEquals(new int[] {0, 1}, result);
+    }
+
+    @Test
+    void leavesUnneededCellsFree() {
+        Instance task = new Instance(
+            new int[] {0, 1, 2, 3},
+            new int[] {0, 0, 0},
+            new double[] {4, 1, 9});
+        int[] result = ProcessorAssignment.solve(3, task.reachStart, task.reachDisplays, task.reachDistanceSq, new int[] {1});
+        assertArrayEquals(new int[] {-1, 0, -1}, result);
+    }
+
+    private static void assertValid(Instance task, int[] required, int[] result, String name) {
+        int[] assigned = new int[required.length];
+        for (int c = 0; c < result.length; c++) {
+            if (result[c] < 0) {
+                continue;
+            }
+            boolean reachable = false;
+            for (int k = task.reachStart[c]; k < task.reachStart[c + 1]; k++) {
+                reachable |= task.reachDisplays[k] == result[c];
+            }
+            assertTrue(reachable, name + ": место " + c + " отдано недосягаемому дисплею " + result[c]);
+            assigned[result[c]]++;
+        }
+        for (int d = 0; d < required.length; d++) {
+            assertTrue(assigned[d] <= required[d], name + ": дисплей " + d + " получил " + assigned[d] + " из " + required[d]);
+        }
+    }
+
+    private static int placed(int[] result) {
+        int count = 0;
+        for (int display : result) {
+            if (display >= 0) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Полный перебор: место c либо не используется, либо отдается любому досягаемому дисплею с остатком потребности.
+     */
+    private static int bestPlacement(Instance task, int[] remaining, int c) {
+        if (c == task.reachStart.length - 1) {
+            return 0;
+        }
+        int best = bestPlacement(task, remaining, c + 1);
+        for (int k = task.reachStart[c]; k < task.reachStart[c + 1]; k++) {
+            int display = task.reachDisplays[k];
+            if (remaining[display] > 0) {
+                remaining[display]--;
+                best = Math.max(best, 1 + bestPlacement(task, remaining, c + 1));
+                remaining[display]++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Входные данные solve в том же виде, в каком их собирает DisplayProcessorMatrixFinal.
+     */
+    private static class Instance {
+        final int[] reachStart;
+        final int[] reachDisplays;
+        final double[] reachDistanceSq;
+
+        Instance(int[] reachStart, int[] reachDisplays, double[] reachDistanceSq) {
+            this.reachStart = reachStart;
+            this.reachDisplays = reachDisplays;
+            this.reachDistanceSq = reachDistanceSq;
+        }
+
+        /**
+         * Каждое место досягает случайного подмножества дисплеев (по возрастанию id) на случайном расстоянии.
+         */
+        static Instance random(Random random, int candidates, int displays) {
+            int[] reachStart = new int[candidates + 1];
+            List<Integer> reach = new ArrayList<>();
+            List<Double> distances = new ArrayList<>();
+            for (int c = 0; c < candidates; c++) {
+                for (int d = 0; d < displays; d++) {
+                    if (random.nextInt(3) > 0) {
+                        reach.add(d);
+                        distances.add((double) (1 + random.nextInt(100)));
+                    }
+                }
+                reachStart[c + 1] = reach.size();
+            }
+            int[] reachDisplays = reach.stream().mapToInt(Integer::intValue).toArray();
+            double[] reachDistanceSq = distances.stream().mapToDouble(Double::doubleValue).toArray();
+            return new Instance(reachStart, reachDisplays, reachDistanceSq);
+        }
+    }
+}